@@ -16,6 +16,9 @@ import java.util.Collections;
 import java.util.EmptyStackException;
 import java.util.List;
 import java.util.Stack;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.cdt.core.dom.ast.IASTFileLocation;
 import org.eclipse.cdt.core.dom.ast.IASTPreprocessorElifStatement;
@@ -26,26 +29,35 @@ import org.eclipse.cdt.core.dom.ast.IASTPreprocessorIfdefStatement;
 import org.eclipse.cdt.core.dom.ast.IASTPreprocessorIfndefStatement;
 import org.eclipse.cdt.core.dom.ast.IASTPreprocessorStatement;
 import org.eclipse.cdt.core.dom.ast.IASTTranslationUnit;
+import org.eclipse.cdt.core.model.CModelException;
 import org.eclipse.cdt.core.model.ICElement;
+import org.eclipse.cdt.core.model.ILanguage;
 import org.eclipse.cdt.core.model.ITranslationUnit;
-//import org.eclipse.cdt.internal.core.model.ASTCache;
-//import org.eclipse.cdt.internal.ui.editor.ASTProvider;
+import org.eclipse.cdt.internal.core.model.ASTCache;
+import org.eclipse.cdt.internal.ui.editor.ASTProvider;
+import org.eclipse.cdt.internal.ui.editor.CEditor;
+import org.eclipse.cdt.internal.ui.text.ICReconcilingListener;
 import org.eclipse.cdt.ui.CDTUITools;
+import org.eclipse.cdt.ui.CUIPlugin;
 import org.eclipse.cdt.ui.text.ICPartitions;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.ITypedRegion;
 import org.eclipse.jface.text.Position;
-import org.eclipse.jface.text.TextUtilities;
 import org.eclipse.jface.text.source.ICharacterPairMatcher;
 import org.eclipse.ui.IEditorPart;
 
 import me.glindholm.plugin.bracketeer2.cdt.core.internals.CPairMatcher;
+import me.glindholm.plugin.bracketeer2.common.BracketScanner;
 import me.glindholm.plugin.bracketeer2.common.BracketsPair;
+import me.glindholm.plugin.bracketeer2.common.DeferredBracketsContainer;
 import me.glindholm.plugin.bracketeer2.common.IBracketeerProcessingContainer;
-import me.glindholm.plugin.bracketeer2.common.SingleBracket;
-import me.glindholm.plugin.bracketeer2.common.Utils;
+import me.glindholm.plugin.bracketeer2.common.PartitionIndex;
 import me.glindholm.plugin.bracketeer2.extensionpoint.BracketeerProcessor;
 
 public class BracketeerCdtProcessor extends BracketeerProcessor {
@@ -57,40 +69,115 @@ public class BracketeerCdtProcessor extends BracketeerProcessor {
      */
     protected final static String LONELY_BRACKETS = "()[]{}"; //$NON-NLS-1$
 
+    /*
+     * The brackets which are matched by counting. Angular brackets are heuristic, so they are left to
+     * the CPairMatcher
+     */
+    protected final static String COUNTED_BRACKETS = "(){}[]"; //$NON-NLS-1$
+    protected final static String HEURISTIC_BRACKETS = "<>"; //$NON-NLS-1$
+
+    /*
+     * Scanning scopes: preprocessor directives, and one scope for each inactive code branch
+     */
+    private final static int PREPROCESSOR_SCOPE = 1;
+    private final static int FIRST_INACTIVE_SCOPE = 2;
+
+    // how long (in ms) to wait for the editor to reconcile the text, before parsing it instead
+    private final static long RECONCILE_WAIT = 500;
+
     private final CPairMatcher _matcher;
+    private final BracketScanner _scanner;
 
     private final ICElement _celem;
+    // the editor which reconciles the translation unit, or null if it isn't a C/C++ editor
+    @SuppressWarnings("restriction")
+    private final CEditor _editor;
     private IDocument _doc;
 
-    private IASTTranslationUnit _ast;
-
-//    @SuppressWarnings("restriction")
-//    class AstRunner implements ASTCache.ASTRunnable
-//    {
-//        IBracketeerProcessingContainer _container;
-//
-//        public AstRunner(IBracketeerProcessingContainer container)
-//        {
-//            _container = container;
-//        }
-//
-//        @Override
-//        public IStatus runOnAST(ILanguage lang, IASTTranslationUnit ast) throws CoreException
-//        {
-//            ClosingBracketHintVisitor visitor = new ClosingBracketHintVisitor(_container,
-//                                                                              _cancelProcessing,
-//                                                                              _hintConf);
-//            ast.accept(visitor);
-//            return Status.OK_STATUS;
-//        }
-//
-//    }
+    // the inactive code found by the last pass, to tell whether an incremental pass is possible
+    private List<Position> _lastInactiveCode;
+    private int _lastDocLength;
+
+    /**
+     * Collects the inactive code and the hints from the AST of the processed text. The brackets found
+     * by the AST are kept by the container until the bracket scan is done, and the hints until the AST
+     * is released (the editor's AST is locked while the runner runs on it).
+     *
+     * The bracket scan needs only the inactive code, so once it is collected the scan is started, and
+     * runs in parallel with the hints.
+     */
+    @SuppressWarnings("restriction")
+    private class AstRunner implements ASTCache.ASTRunnable {
+        private final DeferredBracketsContainer _container;
+        private final IBracketeerProcessingContainer _bracketsContainer;
+        private final IRegion _dirtyRegion;
+        private List<Position> _inactiveCode;
+        private Future<?> _bracketsPhase;
+
+        public AstRunner(final DeferredBracketsContainer container, final IBracketeerProcessingContainer bracketsContainer,
+                final IRegion dirtyRegion) {
+            _container = container;
+            _bracketsContainer = bracketsContainer;
+            _dirtyRegion = dirtyRegion;
+            _inactiveCode = Collections.emptyList();
+        }
+
+        /**
+         * Runs on the editor's AST
+         *
+         * @return CANCEL_STATUS if there is no AST, or if it doesn't match the processed text (the
+         *         document was changed since the pass started)
+         */
+        @Override
+        public IStatus runOnAST(final ILanguage lang, final IASTTranslationUnit ast) {
+            if (ast == null || !isSnapshotCurrent(_doc)) {
+                return Status.CANCEL_STATUS;
+            }
+
+            run(ast);
+            return Status.OK_STATUS;
+        }
+
+        /**
+         * @param ast an AST of the processed text
+         */
+        public void run(final IASTTranslationUnit ast) {
+            _inactiveCode = collectInactiveCodePositions(ast);
+            if (_bracketsPhase == null) {
+                final List<Position> inactiveCode = _inactiveCode;
+                _bracketsPhase = fork(() -> processBrackets(_bracketsContainer, _dirtyRegion, inactiveCode));
+            }
+
+            // the hints are left out in large files (the AST is still needed for the inactive code)
+            if (!isDegraded()) {
+                try {
+                    processAst(_container, ast);
+                } catch (final BadLocationException e) {
+                    _cancelProcessing.set(true);
+                }
+            }
+        }
+
+        public List<Position> getInactiveCode() {
+            return _inactiveCode;
+        }
+
+        /**
+         * @return the bracket scan, or null if it wasn't started (there was no AST)
+         */
+        public Future<?> getBracketsPhase() {
+            return _bracketsPhase;
+        }
+    }
 
     public BracketeerCdtProcessor(final IEditorPart part, final IDocument doc) {
         super(doc);
 
         _celem = CDTUITools.getEditorInputCElement(part.getEditorInput());
+        _editor = part instanceof final CEditor editor ? editor : null;
         _matcher = new CPairMatcher(BRACKETS);
+        _scanner = new BracketScanner(COUNTED_BRACKETS, LONELY_BRACKETS, HEURISTIC_BRACKETS,
+                (d, offset) -> isDegraded() ? null : getMatchingPair(offset + 1));
         _doc = doc;
     }
 
@@ -118,40 +205,49 @@ public class BracketeerCdtProcessor extends BracketeerProcessor {
 
     }
 
-    private SingleBracket getLonelyBracket(final int offset, final List<Position> inactiveCode) throws BadLocationException {
-        final int charOffset = offset - 1;
-        char prevChar;
-
-        prevChar = _doc.getChar(Math.max(charOffset, 0));
-        if (LONELY_BRACKETS.indexOf(prevChar) == -1) {
-            return null;
-        }
-        final String partition = TextUtilities.getContentType(_doc, ICPartitions.C_PARTITIONING, charOffset, false);
-        for (final String partName : ICPartitions.ALL_CPARTITIONS) {
-            if (partName.equals(partition)) {
-                return null;
-            }
-            for (final Position pos : inactiveCode) {
-                if (pos.includes(offset)) {
-                    return null;
-                }
-            }
-        }
-
-        return new SingleBracket(charOffset, Utils.isOpenningBracket(prevChar), prevChar);
+    @Override
+    protected void processDocument(final IDocument doc, final IBracketeerProcessingContainer container) {
+        processDocument(doc, container, (IRegion) null);
     }
 
     @Override
-    protected void processDocument(final IDocument doc, final IBracketeerProcessingContainer container) {
+    protected void processDocument(final IDocument doc, final IBracketeerProcessingContainer container, final IRegion dirtyRegion) {
         if (Activator.DEBUG) {
             Activator.trace("starting process..."); //$NON-NLS-1$
         }
 
         try {
             _doc = doc;
-            updateAst();
-            processBrackets(container);
-            processAst(container);
+            final DeferredBracketsContainer astContainer = new DeferredBracketsContainer(container, true);
+            final AstRunner runner = new AstRunner(astContainer, container, dirtyRegion);
+            final boolean astMatches;
+            try {
+                astMatches = runOnAst(runner);
+                if (astMatches && !_cancelProcessing.get()) {
+                    astContainer.flushHints();
+                }
+            } finally {
+                if (runner.getBracketsPhase() != null) {
+                    join(runner.getBracketsPhase());
+                }
+            }
+            if (!astMatches) {
+                // the AST is of the editor's document, which was changed since the pass started, so its
+                // offsets (and the inactive code) don't match the processed text
+                _cancelProcessing.set(true);
+                return;
+            }
+            if (_cancelProcessing.get()) {
+                return;
+            }
+            if (runner.getBracketsPhase() == null) {
+                processBrackets(container, dirtyRegion, runner.getInactiveCode());
+            }
+            if (_cancelProcessing.get()) {
+                return;
+            }
+            // the scan marked the brackets of the region it scanned as obsolete, including these
+            astContainer.flush();
         } catch (final BadLocationException e) {
             _cancelProcessing.set(true);
         }
@@ -161,67 +257,264 @@ public class BracketeerCdtProcessor extends BracketeerProcessor {
         }
     }
 
-    private void processBrackets(final IBracketeerProcessingContainer container) throws BadLocationException {
-        final List<Position> inactiveCode = collectInactiveCodePositions(_ast);
+    /**
+     * @param dirtyRegion the region changed since the last pass, or null if all the brackets should be
+     *                    found again
+     * @param inactiveCode the inactive code branches (as found by the AST)
+     */
+    private void processBrackets(final IBracketeerProcessingContainer container, final IRegion dirtyRegion, final List<Position> inactiveCode)
+            throws BadLocationException {
+        inactiveCode.sort((pos1, pos2) -> pos1.getOffset() - pos2.getOffset());
         _matcher.updateInactiveCodePositions(inactiveCode);
-        for (int i = 1; i < _doc.getLength() + 1; i++) {
+
+        final List<Position> lastInactiveCode = _lastInactiveCode;
+        final int lengthDelta = _doc.getLength() - _lastDocLength;
+        _lastInactiveCode = inactiveCode;
+        _lastDocLength = _doc.getLength();
+
+        if (dirtyRegion != null && lastInactiveCode != null) {
+            for (final IRegion region : getRescanRegions(_doc, container, dirtyRegion, COUNTED_BRACKETS)) {
+                if (!isInactiveCodeUnchanged(lastInactiveCode, inactiveCode, region, lengthDelta)) {
+                    continue;
+                }
+                final boolean balanced = scanBrackets(region.getOffset(), region.getLength(), inactiveCode);
+                if (_cancelProcessing.get()) {
+                    return;
+                }
+                if (balanced) {
+                    container.markToBeDeleted(region.getOffset(), region.getLength());
+                    _scanner.flush(container);
+                    return;
+                }
+            }
+        }
+
+        scanVisibleFirst(_doc.getLength(), container, _scanner, (offset, length) -> scanBrackets(offset, length, inactiveCode));
+        if (_cancelProcessing.get()) {
+            return;
+        }
+
+        scanBrackets(0, _doc.getLength(), inactiveCode);
+        if (_cancelProcessing.get()) {
+            return;
+        }
+        container.markToBeDeleted(0, _doc.getLength());
+        _scanner.flush(container);
+    }
+
+    /**
+     * A region can be re-scanned on its own only if it holds no inactive code, and the inactive code
+     * outside of it wasn't changed (only shifted, if it is after the region)
+     */
+    private static boolean isInactiveCodeUnchanged(final List<Position> lastInactiveCode, final List<Position> inactiveCode, final IRegion region,
+            final int lengthDelta) {
+        if (lastInactiveCode.size() != inactiveCode.size()) {
+            return false;
+        }
+
+        final int regionEnd = region.getOffset() + region.getLength();
+        for (int i = 0; i < inactiveCode.size(); i++) {
+            final Position last = lastInactiveCode.get(i);
+            final Position current = inactiveCode.get(i);
+            if (last.getLength() != current.getLength()) {
+                return false;
+            }
+            if (getEndOffset(current) <= region.getOffset()) {
+                if (last.getOffset() != current.getOffset()) {
+                    return false;
+                }
+            } else if (current.getOffset() >= regionEnd) {
+                if (last.getOffset() + lengthDelta != current.getOffset()) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if all the brackets in the region are matched
+     */
+    private boolean scanBrackets(final int regionOffset, final int regionLength, final List<Position> inactiveCode) throws BadLocationException {
+        final int regionEnd = regionOffset + regionLength;
+        final ITypedRegion[] partitions = PartitionIndex.computePartitioning(_doc, ICPartitions.C_PARTITIONING, regionOffset, regionLength);
+
+        _scanner.begin(_doc);
+        int inactiveIdx = 0;
+        for (final ITypedRegion partition : partitions) {
             if (_cancelProcessing.get()) {
                 break;
             }
 
-            final BracketsPair pair = getMatchingPair(i);
-            if (pair != null) {
-                if (Activator.DEBUG) {
-                    Activator.trace("matching pair added: " + pair.toString()); //$NON-NLS-1$
-                }
-                container.add(pair);
+            final String type = partition.getType();
+            if (ICPartitions.C_PREPROCESSOR.equals(type)) {
+                // brackets of a directive are matched only within that directive
+                final int start = Math.max(partition.getOffset(), regionOffset);
+                _scanner.scan(start, Math.min(getEndOffset(partition), regionEnd) - start, PREPROCESSOR_SCOPE, _cancelProcessing);
+                _scanner.closeScope(PREPROCESSOR_SCOPE);
+                continue;
+            }
+
+            // comments, strings and characters are skipped
+            if (!IDocument.DEFAULT_CONTENT_TYPE.equals(type)) {
                 continue;
             }
 
-            final SingleBracket single = getLonelyBracket(i, inactiveCode);
-            if (single != null) {
-                container.add(single);
+            // split the code partition by the inactive code branches, each branch has its own stacks
+            int offset = Math.max(partition.getOffset(), regionOffset);
+            final int end = Math.min(getEndOffset(partition), regionEnd);
+            while (offset < end) {
+                while (inactiveIdx < inactiveCode.size() && getEndOffset(inactiveCode.get(inactiveIdx)) <= offset) {
+                    _scanner.closeScope(FIRST_INACTIVE_SCOPE + inactiveIdx);
+                    inactiveIdx++;
+                }
+
+                int segmentEnd = end;
+                int scope = BracketScanner.DEFAULT_SCOPE;
+                if (inactiveIdx < inactiveCode.size()) {
+                    final Position inactive = inactiveCode.get(inactiveIdx);
+                    if (inactive.getOffset() <= offset) {
+                        segmentEnd = Math.min(end, getEndOffset(inactive));
+                        scope = FIRST_INACTIVE_SCOPE + inactiveIdx;
+                    } else {
+                        segmentEnd = Math.min(end, inactive.getOffset());
+                    }
+                }
+
+                _scanner.scan(offset, segmentEnd - offset, scope, _cancelProcessing);
+                offset = segmentEnd;
             }
         }
+        _scanner.end(_cancelProcessing);
+        return _scanner.isBalanced();
     }
 
-//    @SuppressWarnings("restriction")
-    private void processAst(final IBracketeerProcessingContainer container) throws BadLocationException {
-        if (_ast == null) {
-            return;
-        }
+    private static int getEndOffset(final Position pos) {
+        return pos.getOffset() + pos.getLength();
+    }
 
-//        AstRunner runner = new AstRunner(container);
-//        ASTProvider provider = CUIPlugin.getDefault().getASTProvider();
-//
-//        if( provider.runOnAST(_celem, ASTProvider.WAIT_ACTIVE_ONLY, null, runner) == Status.OK_STATUS)
-//            return;
+    private static int getEndOffset(final IRegion region) {
+        return region.getOffset() + region.getLength();
+    }
 
+    private void processAst(final IBracketeerProcessingContainer container, final IASTTranslationUnit ast) throws BadLocationException {
         final ClosingBracketHintVisitor visitor = new ClosingBracketHintVisitor(container, _cancelProcessing, _hintConf);
+        ast.accept(visitor);
 
-        _ast.accept(visitor);
-        // runner.runOnAST(null, ast);
-
-        final IASTPreprocessorStatement[] stmts = _ast.getAllPreprocessorStatements();
+        final IASTPreprocessorStatement[] stmts = ast.getAllPreprocessorStatements();
         final PreprocessorVisitor preVisotor = new PreprocessorVisitor(container, _cancelProcessing, _hintConf);
         preVisotor.visit(stmts);
     }
 
-    private void updateAst() {
-        try {
-            _ast = null;
-            if (_celem == null) {
-                return;
-            }
+    /**
+     * Runs the runner on the AST the editor keeps (see {@link #runOnSharedAst}). If there is no such
+     * AST, the text is parsed.
+     *
+     * @return false if the AST doesn't match the processed text
+     */
+    private boolean runOnAst(final AstRunner runner) {
+        if (_celem == null) {
+            return true;
+        }
 
-            final ITranslationUnit tu = (ITranslationUnit) _celem;
-            IASTTranslationUnit ast;
-            ast = tu.getAST(null, ITranslationUnit.AST_SKIP_ALL_HEADERS | ITranslationUnit.AST_CONFIGURE_USING_SOURCE_CONTEXT
-                    | ITranslationUnit.AST_SKIP_TRIVIAL_EXPRESSIONS_IN_AGGREGATE_INITIALIZERS | ITranslationUnit.AST_PARSE_INACTIVE_CODE);
+        final ITranslationUnit tu = (ITranslationUnit) _celem;
+        if (runOnSharedAst(tu, runner)) {
+            return true;
+        }
+        // the translation unit parses the editor's text, which must still be the processed text
+        if (_cancelProcessing.get() || !isSnapshotCurrent(_doc)) {
+            return false;
+        }
 
-            _ast = ast;
+        try {
+            // same as the editor's AST (see ASTCache)
+            final IASTTranslationUnit ast = tu.getAST(null,
+                    ITranslationUnit.AST_SKIP_ALL_HEADERS | ITranslationUnit.AST_CONFIGURE_USING_SOURCE_CONTEXT
+                            | ITranslationUnit.AST_SKIP_TRIVIAL_EXPRESSIONS_IN_AGGREGATE_INITIALIZERS | ITranslationUnit.AST_PARSE_INACTIVE_CODE);
+            // the live text was parsed, so it is the processed text only if the document wasn't changed
+            // since the snapshot was taken
+            if (!isSnapshotCurrent(_doc)) {
+                return false;
+            }
+            if (ast != null) {
+                runner.run(ast);
+            }
+            return true;
         } catch (final CoreException e) {
             Activator.log(e);
+            return true;
+        }
+    }
+
+    /**
+     * Runs the runner on the AST cached by the C/C++ editor. The cache holds the AST of the last
+     * reconcile, so it is used only if the translation unit is consistent and the document wasn't
+     * changed since the snapshot was taken. If the text wasn't reconciled yet, the reconcile is
+     * waited for (for up to {@link #RECONCILE_WAIT} ms), and a reconcile which is running is waited
+     * for by the ASTProvider.
+     *
+     * @return true if the runner ran on the editor's AST
+     */
+    @SuppressWarnings("restriction")
+    private boolean runOnSharedAst(final ITranslationUnit tu, final AstRunner runner) {
+        if (_cancelProcessing.get() || !isSnapshotCurrent(_doc)) {
+            return false;
+        }
+        try {
+            if (!waitForReconcile(tu) || !isSnapshotCurrent(_doc)) {
+                return false;
+            }
+        } catch (final CModelException e) {
+            Activator.log(e);
+            return false;
+        }
+
+        // there is no AST for an editor which isn't the active one
+        final ASTProvider provider = CUIPlugin.getDefault().getASTProvider();
+        final IStatus status = provider.runOnAST(tu, ASTProvider.WAIT_ACTIVE_ONLY, null, runner);
+        return status != null && status.isOK();
+    }
+
+    /**
+     * Waits for the editor to reconcile the translation unit, which builds the AST of its text
+     *
+     * @return true if the translation unit is consistent (false if it wasn't reconciled in time)
+     */
+    @SuppressWarnings("restriction")
+    private boolean waitForReconcile(final ITranslationUnit tu) throws CModelException {
+        if (tu.isConsistent()) {
+            return true;
+        }
+        if (_editor == null) {
+            return false;
+        }
+
+        final CountDownLatch reconciled = new CountDownLatch(1);
+        final ICReconcilingListener listener = new ICReconcilingListener() {
+            @Override
+            public void aboutToBeReconciled() {
+                // the AST is built once the reconcile is done
+            }
+
+            @Override
+            public void reconciled(final IASTTranslationUnit ast, final boolean force, final IProgressMonitor progressMonitor) {
+                reconciled.countDown();
+            }
+        };
+        _editor.addReconcileListener(listener);
+        try {
+            // the reconcile may have ended before the listener was added
+            if (!tu.isConsistent()) {
+                reconciled.await(RECONCILE_WAIT, TimeUnit.MILLISECONDS);
+            }
+            return tu.isConsistent();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            _editor.removeReconcileListener(listener);
         }
     }
 
@@ -22,10 +22,11 @@ import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.ITypedRegion;
 import org.eclipse.jface.text.Position;
 import org.eclipse.jface.text.Region;
-import org.eclipse.jface.text.TextUtilities;
 import org.eclipse.jface.text.TypedRegion;
 import org.eclipse.jface.text.source.ICharacterPairMatcher;
 
+import me.glindholm.plugin.bracketeer2.common.PartitionIndex;
+
 /**
  * A character pair matcher that matches a specified set of character pairs against each other. Only
  * characters that occur in the same partitioning are matched.
@@ -110,7 +111,7 @@ public class BracketeerCharacterPairMatcher {
                 break;
             }
         }
-        final String partition = TextUtilities.getContentType(doc, fPartitioning, charOffset, false) + suffix;
+        final String partition = PartitionIndex.getContentType(doc, fPartitioning, charOffset) + suffix;
         final DocumentPartitionAccessor partDoc = new DocumentPartitionAccessor(doc, inactiveCode, fPartitioning, partition);
         final int endOffset = findMatchingPeer(partDoc, prevChar, fPairs.getMatching(prevChar), isForward, isForward ? doc.getLength() : -1,
                 searchStartPosition);
@@ -272,7 +273,7 @@ public class BracketeerCharacterPairMatcher {
             if (fCachedPartition == null || !contains(fCachedPartition, pos)) {
                 Assert.isTrue(pos >= 0 && pos <= fDocument.getLength());
                 try {
-                    fCachedPartition = TextUtilities.getPartition(fDocument, fPartitioning, pos, false);
+                    fCachedPartition = PartitionIndex.getPartition(fDocument, fPartitioning, pos);
                     final Position inactivePosAfter = getInactivePositionEndingAfter(pos);
                     final Position inactivePosBefore = getInactivePositionStartingBefore(pos);
                     fCachedPartition = intersect(fCachedPartition, inactivePosAfter,
@@ -22,9 +22,10 @@ import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.ITypedRegion;
 import org.eclipse.jface.text.Region;
-import org.eclipse.jface.text.TextUtilities;
 import org.eclipse.jface.text.TypedRegion;
 
+import me.glindholm.plugin.bracketeer2.common.PartitionIndex;
+
 /**
  * Utility methods for heuristic based C manipulations in an incomplete C source file.
  *
@@ -1053,7 +1054,7 @@ public final class CHeuristicScanner implements Symbols {
             Assert.isTrue(position <= fDocument.getLength());
 
             try {
-                fCachedPartition = TextUtilities.getPartition(fDocument, fPartitioning, position, false);
+                fCachedPartition = PartitionIndex.getPartition(fDocument, fPartitioning, position);
             } catch (final BadLocationException e) {
                 fCachedPartition = new TypedRegion(position, 0, "__no_partition_at_all"); //$NON-NLS-1$
             }
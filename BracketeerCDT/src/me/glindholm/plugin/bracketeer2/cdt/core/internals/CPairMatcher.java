@@ -23,9 +23,10 @@ import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.Position;
 import org.eclipse.jface.text.Region;
-import org.eclipse.jface.text.TextUtilities;
 import org.eclipse.jface.text.source.ICharacterPairMatcher;
 
+import me.glindholm.plugin.bracketeer2.common.PartitionIndex;
+
 /**
  * Helper class to match pairs of characters.
  */
@@ -111,7 +112,7 @@ public class CPairMatcher extends BracketeerCharacterPairMatcher {
         if (offset < 0) {
             return null;
         }
-        final String contentType = TextUtilities.getContentType(document, ICPartitions.C_PARTITIONING, offset, false);
+        final String contentType = PartitionIndex.getContentType(document, ICPartitions.C_PARTITIONING, offset);
         final CHeuristicScanner scanner = new CHeuristicScanner(document, ICPartitions.C_PARTITIONING, contentType);
         if (isTemplateParameterCloseBracket(offset, document, scanner)) {
             final int pos = scanner.findOpeningPeer(offset - 1, Math.max(0, offset - ANGLE_BRACKETS_SEARCH_BOUND), '<', '>');
@@ -134,7 +135,7 @@ public class CPairMatcher extends BracketeerCharacterPairMatcher {
         if (offset < 0) {
             return null;
         }
-        final String contentType = TextUtilities.getContentType(document, ICPartitions.C_PARTITIONING, offset, false);
+        final String contentType = PartitionIndex.getContentType(document, ICPartitions.C_PARTITIONING, offset);
         final CHeuristicScanner scanner = new CHeuristicScanner(document, ICPartitions.C_PARTITIONING, contentType);
         if (isTemplateParameterOpenBracket(offset, document, scanner)) {
             final int pos = scanner.findClosingPeer(offset + 1, Math.min(document.getLength(), offset + ANGLE_BRACKETS_SEARCH_BOUND), '<', '>');
@@ -158,7 +159,7 @@ public class CPairMatcher extends BracketeerCharacterPairMatcher {
         if (offset < 0) {
             return false;
         }
-        final String contentType = TextUtilities.getContentType(document, ICPartitions.C_PARTITIONING, offset, false);
+        final String contentType = PartitionIndex.getContentType(document, ICPartitions.C_PARTITIONING, offset);
         final CHeuristicScanner scanner = new CHeuristicScanner(document, ICPartitions.C_PARTITIONING, contentType);
         return !isTemplateParameterOpenBracket(offset, document, scanner);
     }
@@ -176,7 +177,7 @@ public class CPairMatcher extends BracketeerCharacterPairMatcher {
         if (offset < 0) {
             return false;
         }
-        final String contentType = TextUtilities.getContentType(document, ICPartitions.C_PARTITIONING, offset, false);
+        final String contentType = PartitionIndex.getContentType(document, ICPartitions.C_PARTITIONING, offset);
         final CHeuristicScanner scanner = new CHeuristicScanner(document, ICPartitions.C_PARTITIONING, contentType);
         return !isTemplateParameterCloseBracket(offset, document, scanner);
     }
@@ -16,7 +16,9 @@ import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.plugin.AbstractUIPlugin;
 import org.osgi.framework.BundleContext;
 
+import me.glindholm.plugin.bracketeer2.common.ProcessingExecutor;
 import me.glindholm.plugin.bracketeer2.core.PartListener;
+import me.glindholm.plugin.bracketeer2.core.ProcessingScheduler;
 
 /**
  * The activator class controls the plug-in life cycle
@@ -58,6 +60,8 @@ public class Activator extends AbstractUIPlugin {
     public void stop(final BundleContext context) throws Exception {
         try {
             PartListener.getInstance().uninstall();
+            ProcessingScheduler.getInstance().shutdown();
+            ProcessingExecutor.shutdown();
             plugin = null;
         } finally {
             super.stop(context);
@@ -0,0 +1,706 @@
+/*******************************************************************************
+ * Copyright (c) Gil Barash - chookapp@yahoo.com
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Gil Barash - initial API and implementation
+ *******************************************************************************/
+package me.glindholm.plugin.bracketeer2.common;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+
+/**
+ * A single pass, stack based, brackets scanner.
+ *
+ * The document is fed to the scanner region by region (only the regions which hold code, the caller
+ * is responsible for skipping comments, strings, etc...). Every bracket type has its own stack, so a
+ * bracket is matched exactly like the DefaultCharacterPairMatcher would match it (only brackets of
+ * the same type are counted), but all the pairs are found in one sweep.
+ *
+ * Regions can be scanned in different scopes. Brackets are only matched with brackets of the same
+ * scope, and only unmatched brackets of the {@link #DEFAULT_SCOPE} are reported as single brackets.
+ *
+ * The brackets found are kept by the scanner until {@link #flush(IBracketeerProcessingContainer)} is
+ * called, so the caller can check whether the scanned region was balanced before using them.
+ *
+ * The scanner also tells where each pair is nested: every opening bracket is linked to the innermost
+ * bracket (of any type or scope) which was open when it was found, so once the sweep ends the parent
+ * of a pair is found by following these links, with no searching or sorting. The pairs are then added
+ * to the container outer first, along with their parents.
+ *
+ * In large documents the regions are only collected, and are scanned when the sweep ends: they are
+ * split into chunks which are scanned in parallel, each into the pairs it holds and the brackets it
+ * leaves unmatched, and the chunks are then stitched together in order. The caller decides which
+ * regions hold code (from the partitions of the whole document), so a chunk boundary has no effect
+ * on it.
+ */
+public class BracketScanner {
+    public static final int DEFAULT_SCOPE = 0;
+
+    // the document length from which the regions are scanned in parallel
+    private static final int PARALLEL_MIN_LENGTH = 256 * 1024;
+    // the (approximate) amount of characters scanned by one parallel task
+    private static final int CHUNK_LENGTH = 64 * 1024;
+
+    /**
+     * Matches brackets which can't be matched by counting (such as angular brackets)
+     */
+    public interface IHeuristicMatcher {
+        /**
+         * @param doc    the document
+         * @param offset the (absolute) offset of the bracket
+         * @return the pair this bracket is part of, or null if there is no such pair
+         */
+        BracketsPair match(IDocument doc, int offset) throws BadLocationException;
+    }
+
+    /**
+     * An opening bracket, and the pair it opens once its match is found
+     */
+    private static class Opening {
+        private final int _offset;
+        // the innermost bracket which was open when this one was found (it may be closed since)
+        private Opening _below;
+        private BracketsPair _pair;
+        private boolean _closed;
+        // set when the sweep ends: the innermost pair which holds this one, and whether it crosses a pair
+        private Opening _parent;
+        private boolean _crossing;
+        private boolean _flushed;
+
+        public Opening(final int offset, final Opening below) {
+            _offset = offset;
+            _below = below;
+        }
+
+        private int getCloseOffset() {
+            return _pair.getClosingBracket().getPositionRaw().getOffset();
+        }
+
+        /**
+         * Closes the bracket
+         *
+         * @return the innermost bracket which is still open, if this one was the innermost (otherwise the
+         *         given one)
+         */
+        private Opening close(final BracketsPair pair, final Opening innermost) {
+            _pair = pair;
+            _closed = true;
+            return this == innermost ? getInnermostOpen(_below) : innermost;
+        }
+
+        /**
+         * @return the bracket, or the first one below it which is still open
+         */
+        private static Opening getInnermostOpen(final Opening opening) {
+            Opening ret = opening;
+            while (ret != null && ret._closed) {
+                ret = ret._below;
+            }
+            return ret;
+        }
+    }
+
+    private class ScopeStacks {
+        private final Opening[][] _stacks;
+        private final int[] _sizes;
+
+        public ScopeStacks() {
+            _stacks = new Opening[_pairs.length() / 2][16];
+            _sizes = new int[_pairs.length() / 2];
+        }
+
+        public void push(final int type, final Opening opening) {
+            if (_sizes[type] == _stacks[type].length) {
+                final Opening[] bigger = new Opening[_stacks[type].length * 2];
+                System.arraycopy(_stacks[type], 0, bigger, 0, _sizes[type]);
+                _stacks[type] = bigger;
+            }
+            _stacks[type][_sizes[type]++] = opening;
+        }
+
+        /**
+         * @return the popped bracket, or null if the stack is empty
+         */
+        public Opening pop(final int type) {
+            if (_sizes[type] == 0) {
+                return null;
+            }
+            return _stacks[type][--_sizes[type]];
+        }
+    }
+
+    /**
+     * A region which is scanned when the sweep ends
+     */
+    private static class Segment {
+        private final int _offset;
+        private final int _length;
+
+        public Segment(final int offset, final int length) {
+            _offset = offset;
+            _length = length;
+        }
+    }
+
+    /**
+     * The regions of a scope which are matched against each other (a scope which is closed and then
+     * reused starts a new epoch)
+     */
+    private static class Epoch {
+        private final int _scope;
+        private final List<Segment> _segments;
+        private boolean _closed;
+
+        public Epoch(final int scope) {
+            _scope = scope;
+            _segments = new ArrayList<>();
+            _closed = false;
+        }
+    }
+
+    /**
+     * The result of scanning a chunk on its own: the pairs inside it, and the brackets it leaves
+     * unmatched (the closing ones in the order they appear, and the stacks of the opening ones). The
+     * brackets which were found while no other bracket of the chunk was open are linked to the
+     * brackets open before the chunk once it is stitched.
+     */
+    private class Chunk {
+        private final List<Opening> _pairs;
+        private final ScopeStacks _unmatchedOpen;
+        private final ScopeStacks _unmatchedClose;
+        private final List<Integer> _heuristic;
+        private final List<Opening> _outermost;
+        private Opening _innermost;
+
+        public Chunk() {
+            _pairs = new ArrayList<>();
+            _unmatchedOpen = new ScopeStacks();
+            _unmatchedClose = new ScopeStacks();
+            _heuristic = new ArrayList<>();
+            _outermost = new ArrayList<>();
+            _innermost = null;
+        }
+    }
+
+    private final String _pairs;
+    private final String _heuristicBrackets;
+    private final String _lonelyBrackets;
+    private final IHeuristicMatcher _heuristicMatcher;
+    private final Map<Integer, ScopeStacks> _scopes;
+
+    // the openings of the pairs found, once they are closed
+    private final List<Opening> _foundPairs;
+    private final List<SingleBracket> _foundSingles;
+    // the pairs the heuristic matcher found (by their opening offsets), which finds a pair from either
+    // end
+    private final Map<Integer, Opening> _heuristicOpenings;
+    // the innermost bracket which is open (in any scope)
+    private Opening _innermost;
+    private boolean _balanced;
+
+    // the regions collected by a sweep of a large document (null when the regions are scanned at once)
+    private List<Epoch> _epochs;
+    private final Map<Integer, Epoch> _openEpochs;
+
+    private IDocument _doc;
+
+    /**
+     * @param pairs             the brackets matched by counting, in the form { <i>start</i>,
+     *                          <i>end</i>, <i>start</i>, <i>end</i>, ... } (for example "(){}[]")
+     * @param lonelyBrackets    the brackets which are reported when they are left without a match
+     * @param heuristicBrackets brackets which are passed to the heuristic matcher (may be empty)
+     * @param heuristicMatcher  the matcher for the heuristic brackets (may be null if there are no
+     *                          such brackets)
+     */
+    public BracketScanner(final String pairs, final String lonelyBrackets, final String heuristicBrackets, final IHeuristicMatcher heuristicMatcher) {
+        _pairs = pairs;
+        _lonelyBrackets = lonelyBrackets;
+        _heuristicBrackets = heuristicBrackets;
+        _heuristicMatcher = heuristicMatcher;
+        _scopes = new HashMap<>();
+        _foundPairs = new ArrayList<>();
+        _foundSingles = new ArrayList<>();
+        _heuristicOpenings = new HashMap<>();
+        _openEpochs = new HashMap<>();
+    }
+
+    /**
+     * Starts a new sweep, forgetting the brackets found by the previous one
+     */
+    public void begin(final IDocument doc) {
+        _doc = doc;
+        _scopes.clear();
+        _foundPairs.clear();
+        _foundSingles.clear();
+        _heuristicOpenings.clear();
+        _innermost = null;
+        _balanced = true;
+
+        _openEpochs.clear();
+        _epochs = doc.getLength() >= PARALLEL_MIN_LENGTH && ProcessingExecutor.isParallel() ? new ArrayList<>() : null;
+    }
+
+    /**
+     * Scans a region of code. Regions must be scanned in the order of their offsets.
+     *
+     * @param offset the offset of the region
+     * @param length the length of the region
+     * @param scope  the scope of the brackets in this region
+     * @param cancel when set, the scanning stops
+     */
+    public void scan(final int offset, final int length, final int scope, final MutableBool cancel) throws BadLocationException {
+        if (length <= 0) {
+            return;
+        }
+
+        if (_epochs != null) {
+            Epoch epoch = _openEpochs.get(scope);
+            if (epoch == null) {
+                epoch = new Epoch(scope);
+                _openEpochs.put(scope, epoch);
+                _epochs.add(epoch);
+            }
+            epoch._segments.add(new Segment(offset, length));
+            return;
+        }
+
+        ScopeStacks stacks = _scopes.get(scope);
+        if (stacks == null) {
+            stacks = new ScopeStacks();
+            _scopes.put(scope, stacks);
+        }
+
+        final String txt = _doc.get(offset, length);
+        for (int i = 0; i < txt.length(); i++) {
+            if (cancel.get()) {
+                return;
+            }
+
+            final char ch = txt.charAt(i);
+            final int idx = _pairs.indexOf(ch);
+            if (idx == -1) {
+                if (_heuristicMatcher != null && _heuristicBrackets.indexOf(ch) != -1) {
+                    final BracketsPair pair = _heuristicMatcher.match(_doc, offset + i);
+                    if (pair != null) {
+                        addHeuristicPair(pair, offset + i);
+                    }
+                }
+                continue;
+            }
+
+            final int type = idx / 2;
+            if (idx % 2 == 0) {
+                _innermost = new Opening(offset + i, _innermost);
+                stacks.push(type, _innermost);
+                continue;
+            }
+
+            final Opening opening = stacks.pop(type);
+            if (opening != null) {
+                _innermost = opening.close(new BracketsPair(opening._offset, _pairs.charAt(idx - 1), offset + i, ch), _innermost);
+                _foundPairs.add(opening);
+            } else if (scope == DEFAULT_SCOPE) {
+                _balanced = false;
+                if (_lonelyBrackets.indexOf(ch) != -1) {
+                    _foundSingles.add(new SingleBracket(offset + i, false, ch));
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets the unmatched brackets of a scope (they are not reported as single brackets). A scope
+     * which was closed may be reused afterwards.
+     */
+    public void closeScope(final int scope) {
+        _scopes.remove(scope);
+
+        final Epoch epoch = _openEpochs.remove(scope);
+        if (epoch != null) {
+            epoch._closed = true;
+        }
+    }
+
+    /**
+     * Ends the sweep, reporting the unmatched opening brackets of the default scope
+     */
+    public void end(final MutableBool cancel) throws BadLocationException {
+        if (_epochs != null) {
+            scanEpochs(cancel);
+        }
+
+        final ScopeStacks stacks = _scopes.get(DEFAULT_SCOPE);
+        if (stacks != null && !cancel.get()) {
+            addUnmatchedOpening(stacks);
+        }
+
+        _scopes.clear();
+        _epochs = null;
+        _openEpochs.clear();
+        _innermost = null;
+        _doc = null;
+    }
+
+    private void addUnmatchedOpening(final ScopeStacks stacks) throws BadLocationException {
+        final int[] merged = collectUnmatched(stacks);
+        for (final int offset : merged) {
+            _balanced = false;
+            final char ch = _doc.getChar(offset);
+            if (_lonelyBrackets.indexOf(ch) != -1) {
+                _foundSingles.add(new SingleBracket(offset, true, ch));
+            }
+        }
+    }
+
+    /**
+     * Scans the collected regions: the regions of every epoch are split into chunks, which are scanned
+     * in parallel (unless they are too short to be worth it). The chunks of an epoch are then stitched
+     * in order: the unmatched closing brackets of a chunk are matched with the opening brackets left
+     * by the chunks before it.
+     */
+    private void scanEpochs(final MutableBool cancel) throws BadLocationException {
+        final List<List<List<Segment>>> epochChunks = new ArrayList<>();
+        int total = 0;
+        for (final Epoch epoch : _epochs) {
+            epochChunks.add(splitToChunks(epoch._segments));
+            for (final Segment segment : epoch._segments) {
+                total += segment._length;
+            }
+        }
+
+        final List<List<Chunk>> results = new ArrayList<>();
+        if (total < PARALLEL_MIN_LENGTH) {
+            for (final List<List<Segment>> chunks : epochChunks) {
+                final List<Chunk> epochResults = new ArrayList<>();
+                for (final List<Segment> chunk : chunks) {
+                    epochResults.add(scanChunk(chunk, cancel));
+                }
+                results.add(epochResults);
+            }
+        } else {
+            final List<List<Future<Chunk>>> tasks = new ArrayList<>();
+            for (final List<List<Segment>> chunks : epochChunks) {
+                final List<Future<Chunk>> epochTasks = new ArrayList<>();
+                for (final List<Segment> chunk : chunks) {
+                    final FutureTask<Chunk> task = new FutureTask<>(() -> scanChunk(chunk, cancel));
+                    ProcessingExecutor.execute(task);
+                    epochTasks.add(task);
+                }
+                tasks.add(epochTasks);
+            }
+            for (final List<Future<Chunk>> epochTasks : tasks) {
+                final List<Chunk> epochResults = new ArrayList<>();
+                for (final Future<Chunk> task : epochTasks) {
+                    epochResults.add(join(task, cancel));
+                }
+                results.add(epochResults);
+            }
+        }
+
+        if (cancel.get()) {
+            return;
+        }
+
+        // the epochs are stitched one after the other, so a pair is only nested among the pairs of its
+        // own scope
+        for (int i = 0; i < _epochs.size(); i++) {
+            final Epoch epoch = _epochs.get(i);
+            final ScopeStacks stacks = new ScopeStacks();
+            Opening innermost = null;
+            for (final Chunk chunk : results.get(i)) {
+                innermost = stitch(epoch._scope, stacks, chunk, innermost);
+            }
+            if (epoch._scope == DEFAULT_SCOPE && !epoch._closed) {
+                addUnmatchedOpening(stacks);
+            }
+        }
+
+        // the heuristic matcher isn't expected to be thread safe
+        if (_heuristicMatcher != null) {
+            for (final List<Chunk> epochResults : results) {
+                _innermost = null;
+                for (final Chunk chunk : epochResults) {
+                    for (final int offset : chunk._heuristic) {
+                        final BracketsPair pair = _heuristicMatcher.match(_doc, offset);
+                        if (pair != null) {
+                            addHeuristicPair(pair, offset);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the pair unless it was already found from its other bracket. A pair found from its opening
+     * bracket is open until the sweep gets to its closing one, so the pairs it holds are nested in it.
+     *
+     * @param offset the offset of the bracket the pair was found from
+     */
+    private void addHeuristicPair(final BracketsPair pair, final int offset) {
+        final int openOffset = pair.getOpeningBracket().getPositionRaw().getOffset();
+        final Opening existing = _heuristicOpenings.get(openOffset);
+        if (existing != null) {
+            if (!existing._closed && existing._pair.equals(pair) && existing.getCloseOffset() == offset) {
+                _innermost = existing.close(pair, _innermost);
+                _foundPairs.add(existing);
+            }
+            return;
+        }
+
+        final Opening opening;
+        if (openOffset == offset) {
+            opening = new Opening(openOffset, _innermost);
+            opening._pair = pair;
+            _innermost = opening;
+        } else {
+            // found from its closing bracket only (the pairs it holds were already found, so they are
+            // not nested in it)
+            Opening below = _innermost;
+            while (below != null && below._offset > openOffset) {
+                below = below._below;
+            }
+            opening = new Opening(openOffset, below);
+            opening.close(pair, null);
+            _foundPairs.add(opening);
+        }
+        _heuristicOpenings.put(openOffset, opening);
+    }
+
+    /**
+     * @return the regions split into chunks of about CHUNK_LENGTH characters
+     */
+    private static List<List<Segment>> splitToChunks(final List<Segment> segments) {
+        final List<List<Segment>> ret = new ArrayList<>();
+        List<Segment> chunk = new ArrayList<>();
+        int chunkLength = 0;
+        for (final Segment segment : segments) {
+            int offset = segment._offset;
+            final int end = segment._offset + segment._length;
+            while (offset < end) {
+                final int length = Math.min(end - offset, CHUNK_LENGTH - chunkLength);
+                chunk.add(new Segment(offset, length));
+                chunkLength += length;
+                offset += length;
+                if (chunkLength == CHUNK_LENGTH) {
+                    ret.add(chunk);
+                    chunk = new ArrayList<>();
+                    chunkLength = 0;
+                }
+            }
+        }
+        if (!chunk.isEmpty()) {
+            ret.add(chunk);
+        }
+        return ret;
+    }
+
+    /**
+     * Scans a chunk on its own (may be called by several threads at once)
+     */
+    private Chunk scanChunk(final List<Segment> segments, final MutableBool cancel) throws BadLocationException {
+        final Chunk ret = new Chunk();
+        for (final Segment segment : segments) {
+            final String txt = _doc.get(segment._offset, segment._length);
+            for (int i = 0; i < txt.length(); i++) {
+                if (cancel.get()) {
+                    return ret;
+                }
+
+                final char ch = txt.charAt(i);
+                final int idx = _pairs.indexOf(ch);
+                if (idx == -1) {
+                    if (_heuristicMatcher != null && _heuristicBrackets.indexOf(ch) != -1) {
+                        ret._heuristic.add(segment._offset + i);
+                    }
+                    continue;
+                }
+
+                final int type = idx / 2;
+                if (idx % 2 == 0) {
+                    final Opening opening = new Opening(segment._offset + i, ret._innermost);
+                    if (ret._innermost == null) {
+                        ret._outermost.add(opening);
+                    }
+                    ret._innermost = opening;
+                    ret._unmatchedOpen.push(type, opening);
+                    continue;
+                }
+
+                final Opening opening = ret._unmatchedOpen.pop(type);
+                if (opening != null) {
+                    ret._innermost = opening.close(new BracketsPair(opening._offset, _pairs.charAt(idx - 1), segment._offset + i, ch), ret._innermost);
+                    ret._pairs.add(opening);
+                } else {
+                    ret._unmatchedClose.push(type, new Opening(segment._offset + i, null));
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Adds a chunk to the ones before it (of the same epoch), whose unmatched opening brackets are in
+     * the stacks
+     *
+     * @param innermost the innermost bracket left open by the chunks before it
+     * @return the innermost bracket left open after the chunk
+     */
+    private Opening stitch(final int scope, final ScopeStacks stacks, final Chunk chunk, final Opening innermost) {
+        _foundPairs.addAll(chunk._pairs);
+
+        final Opening below = Opening.getInnermostOpen(innermost);
+        for (final Opening opening : chunk._outermost) {
+            opening._below = below;
+        }
+
+        for (int type = 0; type < stacks._sizes.length; type++) {
+            final char openChar = _pairs.charAt(type * 2);
+            final char closeChar = _pairs.charAt(type * 2 + 1);
+            for (int i = 0; i < chunk._unmatchedClose._sizes[type]; i++) {
+                final int closeOffset = chunk._unmatchedClose._stacks[type][i]._offset;
+                final Opening opening = stacks.pop(type);
+                if (opening != null) {
+                    opening.close(new BracketsPair(opening._offset, openChar, closeOffset, closeChar), null);
+                    _foundPairs.add(opening);
+                } else if (scope == DEFAULT_SCOPE) {
+                    _balanced = false;
+                    if (_lonelyBrackets.indexOf(closeChar) != -1) {
+                        _foundSingles.add(new SingleBracket(closeOffset, false, closeChar));
+                    }
+                }
+            }
+
+            for (int i = 0; i < chunk._unmatchedOpen._sizes[type]; i++) {
+                stacks.push(type, chunk._unmatchedOpen._stacks[type][i]);
+            }
+        }
+        return chunk._innermost != null ? chunk._innermost : below;
+    }
+
+    private static Chunk join(final Future<Chunk> task, final MutableBool cancel) throws BadLocationException {
+        try {
+            return task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel.set(true);
+            return null;
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof BadLocationException) {
+                throw (BadLocationException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * @return true if every bracket of the default scope found by the last sweep has its match within
+     *         the scanned regions
+     */
+    public boolean isBalanced() {
+        return _balanced;
+    }
+
+    /**
+     * Adds the pairs and single brackets found by the last sweep to the container
+     */
+    public void flush(final IBracketeerProcessingContainer container) throws BadLocationException {
+        flushPairs(container);
+        for (final SingleBracket single : _foundSingles) {
+            container.add(single);
+        }
+        _foundSingles.clear();
+    }
+
+    /**
+     * Adds the pairs found by the last sweep to the container, and drops the single brackets (use this
+     * when only part of the document was scanned, as its single brackets may have a match outside of
+     * it)
+     */
+    public void flushPairs(final IBracketeerProcessingContainer container) throws BadLocationException {
+        nestPairs();
+
+        // a pair is added after the pairs which hold it
+        final Deque<Opening> outer = new ArrayDeque<>();
+        for (final Opening opening : _foundPairs) {
+            for (Opening pair = opening; pair != null && !pair._flushed; pair = pair._parent) {
+                outer.push(pair);
+            }
+            while (!outer.isEmpty()) {
+                final Opening pair = outer.pop();
+                container.add(pair._pair, pair._parent == null ? null : pair._parent._pair, pair._crossing);
+                pair._flushed = true;
+            }
+        }
+        _foundPairs.clear();
+        _foundSingles.clear();
+    }
+
+    /**
+     * Finds the parent of every pair found: the first bracket below its opening one whose pair closes
+     * after it. A pair below it which closes inside it crosses it (a bracket which was never matched is
+     * skipped).
+     */
+    private void nestPairs() {
+        // a pair found from its opening bracket whose closing one wasn't reached by the sweep
+        for (final Opening opening : _heuristicOpenings.values()) {
+            if (!opening._closed) {
+                opening._closed = true;
+                _foundPairs.add(opening);
+            }
+        }
+
+        for (final Opening opening : _foundPairs) {
+            final int closeOffset = opening.getCloseOffset();
+            Opening below = opening._below;
+            while (below != null) {
+                if (below._pair != null && below._offset < opening._offset) {
+                    final int belowClose = below.getCloseOffset();
+                    if (belowClose > closeOffset) {
+                        break;
+                    }
+                    if (belowClose > opening._offset) {
+                        opening._crossing = true;
+                    }
+                }
+                below = below._below;
+            }
+            opening._parent = below;
+        }
+    }
+
+    private static int[] collectUnmatched(final ScopeStacks stacks) {
+        int total = 0;
+        for (final int size : stacks._sizes) {
+            total += size;
+        }
+
+        final int[] ret = new int[total];
+        int pos = 0;
+        for (int type = 0; type < stacks._sizes.length; type++) {
+            for (int i = 0; i < stacks._sizes[type]; i++) {
+                ret[pos++] = stacks._stacks[type][i]._offset;
+            }
+        }
+        return ret;
+    }
+}
@@ -11,7 +11,6 @@
  *******************************************************************************/
 package me.glindholm.plugin.bracketeer2.common;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.eclipse.jface.text.Position;
@@ -20,9 +19,7 @@ public class BracketsPair {
     private final List<SingleBracket> _brackets;
 
     public BracketsPair(final int openingOffset, final char openingChar, final int closingOffset, final char closingChar) {
-        _brackets = new ArrayList<>();
-        _brackets.add(new SingleBracket(openingOffset, true, openingChar));
-        _brackets.add(new SingleBracket(closingOffset, false, closingChar));
+        _brackets = List.of(new SingleBracket(openingOffset, true, openingChar), new SingleBracket(closingOffset, false, closingChar));
     }
 
     public List<SingleBracket> getBrackets() {
@@ -65,7 +62,7 @@ public class BracketsPair {
     public SingleBracket getBracketAt(final int offset) {
         for (final SingleBracket br : _brackets) {
             final Position pos = br.getPosition();
-            if (pos != null && pos.offset == offset) {
+            if (pos != null && pos.getOffset() == offset) {
                 return br;
             }
         }
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright (c) Gil Barash - chookapp@yahoo.com
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Gil Barash - initial API and implementation
+ *******************************************************************************/
+package me.glindholm.plugin.bracketeer2.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.jface.text.BadLocationException;
+
+/**
+ * Passes the hints to the container right away, and keeps the pairs and the single brackets until
+ * {@link #flush()} is called.
+ *
+ * Used for the brackets an AST finds (such as angular brackets), which have to be added after the
+ * bracket scan marked the brackets of the region it scanned as obsolete. The hints can be kept as
+ * well (until {@link #flushHints()} is called), when they are found while a lock is held.
+ */
+public class DeferredBracketsContainer implements IBracketeerProcessingContainer {
+    private final IBracketeerProcessingContainer _container;
+    private final List<BracketsPair> _pairs;
+    private final List<SingleBracket> _singles;
+    private final List<Hint> _hints;
+
+    public DeferredBracketsContainer(final IBracketeerProcessingContainer container) {
+        this(container, false);
+    }
+
+    /**
+     * @param deferHints true if the hints should be kept until {@link #flushHints()} is called
+     */
+    public DeferredBracketsContainer(final IBracketeerProcessingContainer container, final boolean deferHints) {
+        _container = container;
+        _pairs = new ArrayList<>();
+        _singles = new ArrayList<>();
+        _hints = deferHints ? new ArrayList<>() : null;
+    }
+
+    /**
+     * Adds the pairs and the single brackets kept so far to the container
+     */
+    public void flush() throws BadLocationException {
+        for (final BracketsPair pair : _pairs) {
+            _container.add(pair);
+        }
+        for (final SingleBracket bracket : _singles) {
+            _container.add(bracket);
+        }
+        _pairs.clear();
+        _singles.clear();
+    }
+
+    /**
+     * Adds the hints kept so far to the container
+     */
+    public void flushHints() throws BadLocationException {
+        if (_hints == null) {
+            return;
+        }
+        for (final Hint hint : _hints) {
+            _container.add(hint);
+        }
+        _hints.clear();
+    }
+
+    @Override
+    public void add(final BracketsPair pair) throws BadLocationException {
+        _pairs.add(pair);
+    }
+
+    @Override
+    public void add(final SingleBracket bracket) throws BadLocationException {
+        _singles.add(bracket);
+    }
+
+    @Override
+    public void add(final Hint hint) throws BadLocationException {
+        if (_hints != null) {
+            _hints.add(hint);
+        } else {
+            _container.add(hint);
+        }
+    }
+
+    @Override
+    public BracketsPair getMatchingPair(final int openOffset, final int closeOffset) {
+        return _container.getMatchingPair(openOffset, closeOffset);
+    }
+
+    @Override
+    public List<BracketsPair> getPairsSurrounding(final int offset) {
+        return _container.getPairsSurrounding(offset);
+    }
+
+    @Override
+    public List<BracketsPair> getMatchingPairs(final int startOffset, final int length) {
+        return _container.getMatchingPairs(startOffset, length);
+    }
+
+    @Override
+    public List<BracketsPair> getBrokenPairs() {
+        return _container.getBrokenPairs();
+    }
+
+    @Override
+    public void markToBeDeleted(final int startOffset, final int length) {
+        _container.markToBeDeleted(startOffset, length);
+    }
+
+    @Override
+    public void markHintsToBeDeleted(final int startOffset, final int length) {
+        _container.markHintsToBeDeleted(startOffset, length);
+    }
+
+    @Override
+    public void publish(final int startOffset, final int length) {
+        _container.publish(startOffset, length);
+    }
+
+    @Override
+    public List<Hint> getHints() {
+        return _container.getHints();
+    }
+}
@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (c) Gil Barash - chookapp@yahoo.com
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Gil Barash - initial API and implementation
+ *******************************************************************************/
+package me.glindholm.plugin.bracketeer2.common;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension3;
+import org.eclipse.jface.text.IDocumentExtension4;
+import org.eclipse.jface.text.IDocumentPartitioner;
+import org.eclipse.jface.text.IDocumentPartitionerExtension2;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.TextUtilities;
+import org.eclipse.jface.text.TypedRegion;
+
+/**
+ * A copy of a document (its text and partitions), taken at the start of a processing pass.
+ *
+ * The processing runs on the copy, so it isn't affected by the changes the user makes in the
+ * meantime. The copy should not be modified.
+ */
+public class DocumentSnapshot extends Document {
+
+    /**
+     * What a snapshot is made of, copied from the document while it is locked. The snapshot itself
+     * (the lines of its text) is built later, without the lock.
+     *
+     * The partitions of a partitioning are copied when they are first asked for (taking the
+     * document's lock again, for as long as they are copied), so the partitionings the processing
+     * doesn't use are never copied. Nothing is copied when the document is about to be changed (that
+     * would be done by the UI thread, while the user types): the partitionings which weren't copied
+     * by then can't be copied anymore, and a pass which asks for one of them has to be run again.
+     */
+    public static class Content {
+        // until the snapshot is built
+        private String _text;
+        private final int _length;
+        private final long _modificationStamp;
+        private final String[] _partitionings;
+        // the document, until all its partitions are copied
+        private IDocument _source;
+        private final Object _sourceLock;
+        // the partitions copied so far (guarded by itself)
+        private final Map<String, PartitionIndex> _partitionIndexes;
+        // a partitioning was asked for after the document was changed (guarded by _partitionIndexes)
+        private boolean _incomplete;
+
+        /**
+         * Copies the text of the document. The caller should make sure the document isn't changed
+         * meanwhile (by holding its lock), and call {@link #documentAboutToBeChanged()} before the
+         * document is changed.
+         *
+         * @param sourceLock the lock which guards the document
+         */
+        public Content(final IDocument source, final Object sourceLock) {
+            _text = source.get();
+            _length = _text.length();
+            _modificationStamp = source instanceof IDocumentExtension4 ? ((IDocumentExtension4) source).getModificationStamp()
+                    : IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+            _partitionings = source instanceof final IDocumentExtension3 ext ? ext.getPartitionings() : new String[0];
+            _source = source;
+            _sourceLock = sourceLock;
+            _partitionIndexes = new HashMap<>();
+        }
+
+        /**
+         * Called (holding the document's lock) before the document is changed. The partitions which
+         * weren't copied yet are not copied anymore.
+         *
+         * @return false if the document has partitionings but none of them was copied yet (the pass
+         *         hasn't asked for the ones it uses yet, so it should be canceled)
+         */
+        public boolean documentAboutToBeChanged() {
+            synchronized (_partitionIndexes) {
+                _source = null;
+                return _partitionings.length == 0 || !_partitionIndexes.isEmpty();
+            }
+        }
+
+        /**
+         * @return false if a partitioning was asked for after the document was changed, so the
+         *         partitions it got don't match the snapshot's text
+         */
+        public boolean isComplete() {
+            synchronized (_partitionIndexes) {
+                return !_incomplete;
+            }
+        }
+
+        private void copyAllPartitions() {
+            synchronized (_partitionIndexes) {
+                for (final String partitioning : _partitionings) {
+                    copyPartitions(partitioning);
+                }
+                _source = null;
+            }
+        }
+
+        /**
+         * @return the partitions of the given partitioning, or null if the document doesn't have such a
+         *         partitioning
+         */
+        private PartitionIndex getPartitionIndex(final String partitioning) {
+            synchronized (_partitionIndexes) {
+                final PartitionIndex index = _partitionIndexes.get(partitioning);
+                if (index != null) {
+                    return index;
+                }
+                if (_source == null) {
+                    return getMissedPartitionIndex(partitioning);
+                }
+            }
+
+            synchronized (_sourceLock) {
+                synchronized (_partitionIndexes) {
+                    if (_source == null) {
+                        return getMissedPartitionIndex(partitioning);
+                    }
+                    if (Arrays.asList(_partitionings).contains(partitioning)) {
+                        copyPartitions(partitioning);
+                    }
+                    return _partitionIndexes.get(partitioning);
+                }
+            }
+        }
+
+        /**
+         * @return a single default partition (marking the snapshot incomplete) if the document has the
+         *         partitioning, which can't be copied anymore
+         */
+        private PartitionIndex getMissedPartitionIndex(final String partitioning) {
+            PartitionIndex index = _partitionIndexes.get(partitioning);
+            if (index == null && Arrays.asList(_partitionings).contains(partitioning)) {
+                _incomplete = true;
+                index = new PartitionIndex(new ITypedRegion[] { new TypedRegion(0, _length, IDocument.DEFAULT_CONTENT_TYPE) }, _length);
+                _partitionIndexes.put(partitioning, index);
+            }
+            return index;
+        }
+
+        private void copyPartitions(final String partitioning) {
+            if (_partitionIndexes.containsKey(partitioning)) {
+                return;
+            }
+
+            ITypedRegion[] partitions = null;
+            // can't happen unless the document was changed without notifying the snapshot
+            if (isCurrent(_source, _modificationStamp) && _source.getLength() == _length) {
+                try {
+                    partitions = TextUtilities.computePartitioning(_source, partitioning, 0, _length, false);
+                } catch (final BadLocationException e) {
+                    // the document was changed (handled below)
+                }
+            }
+            if (partitions == null) {
+                partitions = new ITypedRegion[] { new TypedRegion(0, _length, IDocument.DEFAULT_CONTENT_TYPE) };
+            }
+            _partitionIndexes.put(partitioning, new PartitionIndex(partitions, _length));
+        }
+
+        private String takeText() {
+            final String text = _text;
+            _text = null;
+            return text;
+        }
+    }
+
+    /**
+     * Serves the partitions the source document had when the snapshot was taken
+     */
+    private static class SnapshotPartitioner implements IDocumentPartitioner, IDocumentPartitionerExtension2 {
+        private final Content _content;
+        private final String _partitioning;
+
+        public SnapshotPartitioner(final Content content, final String partitioning) {
+            _content = content;
+            _partitioning = partitioning;
+        }
+
+        private PartitionIndex getIndex() {
+            return _content.getPartitionIndex(_partitioning);
+        }
+
+        @Override
+        public void connect(final IDocument document) {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void documentAboutToBeChanged(final DocumentEvent event) {
+        }
+
+        @Override
+        public boolean documentChanged(final DocumentEvent event) {
+            return false;
+        }
+
+        @Override
+        public String[] getLegalContentTypes() {
+            return getIndex().getContentTypes();
+        }
+
+        @Override
+        public String[] getManagingPositionCategories() {
+            return null;
+        }
+
+        @Override
+        public String getContentType(final int offset) {
+            return getIndex().getContentType(offset);
+        }
+
+        @Override
+        public String getContentType(final int offset, final boolean preferOpenPartitions) {
+            return getPartition(offset, preferOpenPartitions).getType();
+        }
+
+        @Override
+        public ITypedRegion getPartition(final int offset) {
+            return getIndex().getPartition(offset);
+        }
+
+        /**
+         * Same as FastPartitioner: an offset at the start of a partition is considered to be in the
+         * previous partition, if that one is open (a default partition)
+         */
+        @Override
+        public ITypedRegion getPartition(final int offset, final boolean preferOpenPartitions) {
+            final PartitionIndex index = getIndex();
+            final ITypedRegion region = index.getPartition(offset);
+            if (preferOpenPartitions && region.getOffset() == offset && !IDocument.DEFAULT_CONTENT_TYPE.equals(region.getType())) {
+                if (offset > 0) {
+                    final ITypedRegion previous = index.getPartition(offset - 1);
+                    if (IDocument.DEFAULT_CONTENT_TYPE.equals(previous.getType())) {
+                        return previous;
+                    }
+                }
+                return new TypedRegion(offset, 0, IDocument.DEFAULT_CONTENT_TYPE);
+            }
+            return region;
+        }
+
+        @Override
+        public ITypedRegion[] computePartitioning(final int offset, final int length) {
+            return getIndex().computePartitioning(offset, length);
+        }
+
+        /**
+         * Zero length partitions are not reported
+         */
+        @Override
+        public ITypedRegion[] computePartitioning(final int offset, final int length, final boolean includeZeroLengthPartitions) {
+            return getIndex().computePartitioning(offset, length);
+        }
+    }
+
+    private final long _sourceModificationStamp;
+    private final Content _content;
+
+    /**
+     * Copies the document. The caller should make sure the document isn't changed while the copy is
+     * taken (by holding its lock).
+     */
+    public DocumentSnapshot(final IDocument source) throws BadLocationException {
+        this(copy(source));
+    }
+
+    /**
+     * Builds the snapshot of a copied document (the document's lock isn't needed anymore)
+     */
+    public DocumentSnapshot(final Content content) {
+        super(content.takeText());
+
+        _sourceModificationStamp = content._modificationStamp;
+        _content = content;
+        for (final String partitioning : content._partitionings) {
+            setDocumentPartitioner(partitioning, new SnapshotPartitioner(content, partitioning));
+        }
+    }
+
+    /**
+     * @return a copy of the document, with all its partitions
+     */
+    private static Content copy(final IDocument source) {
+        final Content content = new Content(source, new Object());
+        content.copyAllPartitions();
+        return content;
+    }
+
+    /**
+     * @return the partitions of the given partitioning, or null if the document doesn't have such a
+     *         partitioning
+     */
+    public PartitionIndex getPartitionIndex(final String partitioning) {
+        return _content.getPartitionIndex(partitioning);
+    }
+
+    /**
+     * @return true if the document the snapshot was taken from wasn't changed since (or if this can't
+     *         be told)
+     */
+    public boolean isCurrent(final IDocument source) {
+        return isCurrent(source, _sourceModificationStamp);
+    }
+
+    private static boolean isCurrent(final IDocument source, final long modificationStamp) {
+        if (modificationStamp == IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP || !(source instanceof IDocumentExtension4)) {
+            return true;
+        }
+        return ((IDocumentExtension4) source).getModificationStamp() == modificationStamp;
+    }
+
+}
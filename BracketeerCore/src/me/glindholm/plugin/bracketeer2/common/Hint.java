@@ -20,8 +20,8 @@ public class Hint {
     private final Position _hintPosition;
 
     public Hint(final String type, final int originOffset, final int hintOffset, final String txt) {
-        _originPosition = new Position(originOffset, 1);
-        _hintPosition = new Position(hintOffset, 1);
+        _originPosition = new TrackedPosition(originOffset, 1);
+        _hintPosition = new TrackedPosition(hintOffset, 1);
         _str = txt.replaceAll("\\s*[\r|\n]+\\s*", " "); //$NON-NLS-1$ //$NON-NLS-2$
         _type = type;
     }
@@ -10,6 +10,7 @@
  *******************************************************************************/
 package me.glindholm.plugin.bracketeer2.common;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.eclipse.jface.text.BadLocationException;
@@ -24,6 +25,20 @@ public interface IBracketeerProcessingContainer {
      */
     void add(BracketsPair pair) throws BadLocationException;
 
+    /**
+     * Adds a pair along with its place among the pairs found with it (see {@link #add(BracketsPair)}).
+     * The pair must be added after its parent. By default the place is dropped, and the container
+     * places the pair by the pairs which surround it.
+     *
+     * @param pair     the pair to add
+     * @param parent   the innermost pair which holds it, or null if no pair found with it does
+     * @param crossing true if the pair crosses another pair (such as "([)]")
+     * @throws BadLocationException
+     */
+    default void add(final BracketsPair pair, final BracketsPair parent, final boolean crossing) throws BadLocationException {
+        add(pair);
+    }
+
     /**
      * Adds a single bracket (has a missing pair) to the container If the bracket already exists (as a
      * single bracket) nothing happens Adding a single bracket which is also in a pair is illegal and
@@ -51,6 +66,66 @@ public interface IBracketeerProcessingContainer {
      */
     BracketsPair getMatchingPair(int openOffset, int closeOffset);
 
+    /**
+     * Gets the pairs which surround the specified offset (the opening bracket is at or before the
+     * offset and the closing bracket is after it)
+     *
+     * @param offset the (absolute) offset
+     */
+    List<BracketsPair> getPairsSurrounding(int offset);
+
+    /**
+     * Gets the pairs which have at least one bracket inside the specified region
+     *
+     * @param startOffset the (absolute) offset of the region
+     * @param length      the length of the region
+     */
+    List<BracketsPair> getMatchingPairs(int startOffset, int length);
+
+    /**
+     * Gets the pairs which lost one of their brackets, as the text holding it was changed (the other
+     * bracket was left without a match)
+     */
+    default List<BracketsPair> getBrokenPairs() {
+        final List<BracketsPair> ret = new ArrayList<>();
+        for (final BracketsPair pair : getMatchingPairs(0, Integer.MAX_VALUE)) {
+            if (pair.hasDeletedPosition()) {
+                ret.add(pair);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Marks the pairs and single brackets which are inside the specified region (or which lost their
+     * position due to a document change) as obsolete. Obsolete brackets which are not added again
+     * during the current processing pass are removed when it ends.
+     *
+     * @param startOffset the (absolute) offset of the region
+     * @param length      the length of the region
+     */
+    void markToBeDeleted(int startOffset, int length);
+
+    /**
+     * Marks the hints which are inside the specified region (or which lost their position due to a
+     * document change) as obsolete. Obsolete hints which are not added again during the current
+     * processing pass are removed when it ends.
+     *
+     * @param startOffset the (absolute) offset of the region
+     * @param length      the length of the region
+     */
+    void markHintsToBeDeleted(int startOffset, int length);
+
+    /**
+     * Notifies the listeners about the brackets added so far, without waiting for the processing pass
+     * to end. All the pairs inside the specified region are expected to have been added already, so
+     * obsolete pairs which are entirely inside it are removed.
+     *
+     * @param startOffset the (absolute) offset of the region
+     * @param length      the length of the region
+     */
+    void publish(int startOffset, int length);
+
     /**
      * Returns all the hints in the container
      */
@@ -1,7 +1,8 @@
 package me.glindholm.plugin.bracketeer2.common;
 
 public class MutableBool {
-    private boolean _val;
+    // set by one thread of a processing pass, and read by the others
+    private volatile boolean _val;
 
     public MutableBool(final boolean val) {
         set(val);
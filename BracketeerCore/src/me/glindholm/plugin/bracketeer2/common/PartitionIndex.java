@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright (c) Gil Barash - chookapp@yahoo.com
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Gil Barash - initial API and implementation
+ *******************************************************************************/
+package me.glindholm.plugin.bracketeer2.common;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.TextUtilities;
+import org.eclipse.jface.text.TypedRegion;
+
+/**
+ * The partitions of a document (of one partitioning), kept in a sorted array which is searched by a
+ * binary search.
+ *
+ * The index is computed once, when a processing pass starts (see {@link DocumentSnapshot}), and is
+ * shared by the scanners, the matchers, etc. of the pass. It is never modified, so it can be used by
+ * several threads.
+ */
+public class PartitionIndex {
+    private final ITypedRegion[] _partitions;
+    private final int _length;
+
+    /**
+     * Computes the partitions of the whole document
+     */
+    public PartitionIndex(final IDocument doc, final String partitioning) throws BadLocationException {
+        this(TextUtilities.computePartitioning(doc, partitioning, 0, doc.getLength(), false), doc.getLength());
+    }
+
+    /**
+     * @param partitions the partitions of the whole document, as computed by
+     *                   {@link TextUtilities#computePartitioning(IDocument, String, int, int, boolean)}
+     *                   (without zero length partitions)
+     * @param length     the length of the document
+     */
+    public PartitionIndex(final ITypedRegion[] partitions, final int length) {
+        _length = length;
+        _partitions = partitions;
+    }
+
+    /**
+     * @return the index of the document's partitioning, or null if the document isn't a snapshot (or
+     *         doesn't have this partitioning)
+     */
+    public static PartitionIndex get(final IDocument doc, final String partitioning) {
+        if (doc instanceof DocumentSnapshot) {
+            return ((DocumentSnapshot) doc).getPartitionIndex(partitioning);
+        }
+        return null;
+    }
+
+    /**
+     * Same as {@link TextUtilities#getPartition(IDocument, String, int, boolean)} (without preferring
+     * open partitions), but uses the index when the document is a snapshot
+     */
+    public static ITypedRegion getPartition(final IDocument doc, final String partitioning, final int offset) throws BadLocationException {
+        final PartitionIndex index = get(doc, partitioning);
+        if (index == null) {
+            return TextUtilities.getPartition(doc, partitioning, offset, false);
+        }
+        index.checkOffset(offset);
+        return index.getPartition(offset);
+    }
+
+    /**
+     * Same as {@link TextUtilities#getContentType(IDocument, String, int, boolean)} (without
+     * preferring open partitions), but uses the index when the document is a snapshot
+     */
+    public static String getContentType(final IDocument doc, final String partitioning, final int offset) throws BadLocationException {
+        return getPartition(doc, partitioning, offset).getType();
+    }
+
+    /**
+     * Same as {@link TextUtilities#computePartitioning(IDocument, String, int, int, boolean)} (without
+     * zero length partitions), but uses the index when the document is a snapshot
+     */
+    public static ITypedRegion[] computePartitioning(final IDocument doc, final String partitioning, final int offset, final int length)
+            throws BadLocationException {
+        final PartitionIndex index = get(doc, partitioning);
+        if (index == null) {
+            return TextUtilities.computePartitioning(doc, partitioning, offset, length, false);
+        }
+        index.checkOffset(offset);
+        index.checkOffset(offset + length);
+        return index.computePartitioning(offset, length);
+    }
+
+    /**
+     * @return the length of the document
+     */
+    public int getLength() {
+        return _length;
+    }
+
+    /**
+     * @param offset an offset in the document (the end of the document included)
+     * @return the partition holding the offset. The end of the document, after a partition which isn't
+     *         the default one, is a zero length default partition (same as FastPartitioner).
+     */
+    public ITypedRegion getPartition(final int offset) {
+        final int idx = indexOf(offset);
+        if (idx == -1) {
+            return new TypedRegion(offset, 0, IDocument.DEFAULT_CONTENT_TYPE);
+        }
+        return _partitions[idx];
+    }
+
+    public String getContentType(final int offset) {
+        return getPartition(offset).getType();
+    }
+
+    /**
+     * @return the partitions in the region, the first and last ones are clipped to the region (zero
+     *         length partitions are not reported)
+     */
+    public ITypedRegion[] computePartitioning(final int offset, final int length) {
+        final int end = offset + length;
+        final int first = indexOf(offset);
+        if (first == -1 || _partitions[first].getOffset() >= end) {
+            return new ITypedRegion[0];
+        }
+
+        int last = first;
+        while (last + 1 < _partitions.length && _partitions[last + 1].getOffset() < end) {
+            last++;
+        }
+
+        final ITypedRegion[] ret = Arrays.copyOfRange(_partitions, first, last + 1);
+        ret[0] = clip(ret[0], offset, end);
+        ret[ret.length - 1] = clip(ret[ret.length - 1], offset, end);
+        return ret;
+    }
+
+    /**
+     * @return the content types of the partitions (the default content type included)
+     */
+    public String[] getContentTypes() {
+        final Set<String> types = new LinkedHashSet<>();
+        types.add(IDocument.DEFAULT_CONTENT_TYPE);
+        for (final ITypedRegion partition : _partitions) {
+            types.add(partition.getType());
+        }
+        return types.toArray(new String[types.size()]);
+    }
+
+    private void checkOffset(final int offset) throws BadLocationException {
+        if (offset < 0 || offset > _length) {
+            throw new BadLocationException();
+        }
+    }
+
+    private static ITypedRegion clip(final ITypedRegion partition, final int start, final int end) {
+        final int partitionEnd = partition.getOffset() + partition.getLength();
+        if (partition.getOffset() >= start && partitionEnd <= end) {
+            return partition;
+        }
+        final int clippedStart = Math.max(partition.getOffset(), start);
+        return new TypedRegion(clippedStart, Math.min(partitionEnd, end) - clippedStart, partition.getType());
+    }
+
+    /**
+     * @return the index of the partition holding the offset (the last partition, for the end of the
+     *         document if it is a default partition), or -1 if there is no such partition
+     */
+    private int indexOf(final int offset) {
+        int low = 0;
+        int high = _partitions.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final ITypedRegion partition = _partitions[mid];
+            if (offset < partition.getOffset()) {
+                high = mid - 1;
+            } else if (offset >= partition.getOffset() + partition.getLength()) {
+                low = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+
+        if (offset == _length && _partitions.length > 0) {
+            final ITypedRegion last = _partitions[_partitions.length - 1];
+            if (IDocument.DEFAULT_CONTENT_TYPE.equals(last.getType())) {
+                return _partitions.length - 1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,345 @@
+/*******************************************************************************
+ * Copyright (c) Gil Barash - chookapp@yahoo.com
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Gil Barash - initial API and implementation
+ *******************************************************************************/
+package me.glindholm.plugin.bracketeer2.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DefaultPositionUpdater;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.Position;
+
+/**
+ * Keeps positions current while their document changes, the same way the document does with a
+ * {@link DefaultPositionUpdater}, without registering them with the document.
+ *
+ * The positions are kept in a treap ordered by their offsets (the positions are the nodes
+ * themselves, see {@link TrackedPosition}). A change shifts all the positions after
+ * it by marking the root of their subtree only (the shift is pushed down to the children when they
+ * are visited), so a change costs O(log n) plus the positions it actually touches. A position learns
+ * its offset by summing the shifts on its way up to the root, when it is read (see
+ * {@link TrackedPosition}).
+ *
+ * All the methods are synchronized, the positions may be read by any thread.
+ */
+public class PositionTree {
+    /**
+     * Adapts a single position to a change, as the document does it
+     */
+    private static class Adapter extends DefaultPositionUpdater {
+        public Adapter() {
+            super(""); //$NON-NLS-1$
+        }
+
+        /**
+         * @return false if the position was deleted
+         */
+        public boolean adapt(final Position position, final int offset, final int length, final int replaceLength) {
+            fPosition = position;
+            fOriginalPosition.offset = position.offset;
+            fOriginalPosition.length = position.length;
+            fOffset = offset;
+            fLength = length;
+            fReplaceLength = replaceLength;
+            if (notDeleted()) {
+                adaptToReplace();
+            }
+            fPosition = null;
+            return !position.isDeleted;
+        }
+
+        @Override
+        protected boolean notDeleted() {
+            // same as the default, without removing the position from the document
+            if (fOffset < fPosition.offset && fPosition.offset + fPosition.length < fOffset + fLength) {
+                fPosition.delete();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private final Adapter _adapter;
+    private final Random _random;
+    private TrackedPosition _root;
+    private int _size;
+    // the longest position ever tracked (a change may touch the positions which start before it)
+    private int _maxLength;
+    // incremented on every change, a position whose version differs has to learn its offset again
+    private int _version;
+
+    public PositionTree() {
+        _adapter = new Adapter();
+        _random = new Random();
+        _root = null;
+        _size = 0;
+        _maxLength = 1;
+        _version = 0;
+    }
+
+    /**
+     * Starts tracking a position (as {@link org.eclipse.jface.text.IDocument#addPosition(Position)})
+     */
+    public synchronized void add(final TrackedPosition position, final int docLength) throws BadLocationException {
+        if (position.offset < 0 || position.length < 0 || position.offset + position.length > docLength) {
+            throw new BadLocationException();
+        }
+        if (position._tree != null) {
+            return;
+        }
+
+        position._tree = this;
+        position._version = _version;
+        position._priority = _random.nextInt();
+        position._key = position.offset;
+        position._shift = 0;
+        _maxLength = Math.max(_maxLength, position.length);
+        insert(position);
+        _size++;
+    }
+
+    /**
+     * Stops tracking a position, its offset is left as it is now
+     */
+    public synchronized void remove(final TrackedPosition position) {
+        if (position._tree != this) {
+            return;
+        }
+
+        sync(position);
+        detach(position);
+        position._tree = null;
+        _size--;
+    }
+
+    public synchronized int size() {
+        return _size;
+    }
+
+    /**
+     * @return the positions which overlap the region (see {@link Position#overlapsWith(int, int)}), by
+     *         their offsets
+     */
+    public synchronized List<TrackedPosition> find(final int offset, final int length) {
+        final List<TrackedPosition> ret = new ArrayList<>();
+        // only the positions which start before the end of the region, and not too long before it
+        find(_root, offset - _maxLength + 1, offset + Math.max(length, 1), offset, length, ret);
+        return ret;
+    }
+
+    /**
+     * @return a number which changes whenever the document changes (so the positions may have moved)
+     */
+    public synchronized int getVersion() {
+        return _version;
+    }
+
+    /**
+     * Adapts the positions to a change of the document (called before the change is reported to the
+     * document's listeners)
+     *
+     * @return the positions which were deleted by the change (they are no longer tracked)
+     */
+    public List<TrackedPosition> update(final DocumentEvent event) {
+        final String text = event.getText();
+        return documentChanged(event.getOffset(), event.getLength(), text == null ? 0 : text.length());
+    }
+
+    /**
+     * @return the positions which were deleted by the change (they are no longer tracked)
+     */
+    public synchronized List<TrackedPosition> documentChanged(final int offset, final int length, final int replaceLength) {
+        _version++;
+        final List<TrackedPosition> deleted = new ArrayList<>();
+        if (_root == null) {
+            return deleted;
+        }
+
+        // the positions from the end of the replaced text on are only shifted; the ones before it may be
+        // touched only if they reach the replaced text
+        final TrackedPosition[] head = split(_root, offset - _maxLength + 1);
+        final TrackedPosition[] rest = split(head[1], offset + length);
+        final TrackedPosition touched = rest[0];
+        final TrackedPosition tail = rest[1];
+        if (tail != null && replaceLength != length) {
+            tail._key += replaceLength - length;
+            tail._shift += replaceLength - length;
+        }
+        _root = merge(head[0], tail);
+        setParent(_root, null);
+
+        final List<TrackedPosition> nodes = new ArrayList<>();
+        collect(touched, nodes);
+        for (final TrackedPosition pos : nodes) {
+            pos.offset = pos._key;
+            pos._version = _version;
+            pos._left = null;
+            pos._right = null;
+            pos._parent = null;
+            if (_adapter.adapt(pos, offset, length, replaceLength)) {
+                pos._key = pos.offset;
+                _maxLength = Math.max(_maxLength, pos.length);
+                insert(pos);
+            } else {
+                pos._tree = null;
+                _size--;
+                deleted.add(pos);
+            }
+        }
+        return deleted;
+    }
+
+    synchronized void sync(final TrackedPosition position) {
+        if (position._tree != this || position._version == _version) {
+            return;
+        }
+
+        int offset = position._key;
+        for (TrackedPosition ancestor = position._parent; ancestor != null; ancestor = ancestor._parent) {
+            offset += ancestor._shift;
+        }
+        position.offset = offset;
+        position._version = _version;
+    }
+
+    /**
+     * Adds the nodes of the tree whose keys are in [fromKey, toKey) and which overlap the region to the
+     * list
+     */
+    private void find(final TrackedPosition node, final int fromKey, final int toKey, final int offset, final int length,
+            final List<TrackedPosition> found) {
+        if (node == null) {
+            return;
+        }
+
+        pushDown(node);
+        if (node._key >= fromKey) {
+            find(node._left, fromKey, toKey, offset, length, found);
+            if (node._key < toKey) {
+                node.offset = node._key;
+                node._version = _version;
+                if (node.overlapsWith(offset, length)) {
+                    found.add(node);
+                }
+            }
+        }
+        if (node._key < toKey) {
+            find(node._right, fromKey, toKey, offset, length, found);
+        }
+    }
+
+    private void insert(final TrackedPosition node) {
+        final TrackedPosition[] parts = split(_root, node._key);
+        _root = merge(merge(parts[0], node), parts[1]);
+        setParent(_root, null);
+    }
+
+    private void detach(final TrackedPosition node) {
+        pushDown(node);
+        final TrackedPosition replacement = merge(node._left, node._right);
+        final TrackedPosition parent = node._parent;
+        if (parent == null) {
+            _root = replacement;
+        } else if (parent._left == node) {
+            parent._left = replacement;
+        } else {
+            parent._right = replacement;
+        }
+        setParent(replacement, parent);
+    }
+
+    /**
+     * @return the nodes whose keys are smaller than the key, and the rest (the roots have no parents)
+     */
+    private TrackedPosition[] split(final TrackedPosition node, final int key) {
+        final TrackedPosition[] ret = new TrackedPosition[2];
+        if (node == null) {
+            return ret;
+        }
+
+        pushDown(node);
+        if (node._key < key) {
+            final TrackedPosition[] parts = split(node._right, key);
+            node._right = parts[0];
+            setParent(parts[0], node);
+            ret[0] = node;
+            ret[1] = parts[1];
+        } else {
+            final TrackedPosition[] parts = split(node._left, key);
+            node._left = parts[1];
+            setParent(parts[1], node);
+            ret[0] = parts[0];
+            ret[1] = node;
+        }
+        setParent(ret[0], null);
+        setParent(ret[1], null);
+        return ret;
+    }
+
+    /**
+     * Merges two trees, all the keys of the first are smaller than (or equal to) the keys of the second
+     */
+    private TrackedPosition merge(final TrackedPosition first, final TrackedPosition second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+
+        if (first._priority > second._priority) {
+            pushDown(first);
+            first._right = merge(first._right, second);
+            setParent(first._right, first);
+            return first;
+        }
+        pushDown(second);
+        second._left = merge(first, second._left);
+        setParent(second._left, second);
+        return second;
+    }
+
+    private static void pushDown(final TrackedPosition node) {
+        if (node._shift == 0) {
+            return;
+        }
+        if (node._left != null) {
+            node._left._key += node._shift;
+            node._left._shift += node._shift;
+        }
+        if (node._right != null) {
+            node._right._key += node._shift;
+            node._right._shift += node._shift;
+        }
+        node._shift = 0;
+    }
+
+    private static void setParent(final TrackedPosition node, final TrackedPosition parent) {
+        if (node != null) {
+            node._parent = parent;
+        }
+    }
+
+    /**
+     * Adds the nodes of the tree (with their shifts pushed down) to the list
+     */
+    private static void collect(final TrackedPosition node, final List<TrackedPosition> nodes) {
+        if (node == null) {
+            return;
+        }
+        pushDown(node);
+        collect(node._left, nodes);
+        nodes.add(node);
+        collect(node._right, nodes);
+    }
+}
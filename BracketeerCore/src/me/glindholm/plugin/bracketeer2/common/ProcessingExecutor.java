@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (c) Gil Barash - chookapp@yahoo.com
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Gil Barash - initial API and implementation
+ *******************************************************************************/
+package me.glindholm.plugin.bracketeer2.common;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the work the processing does in parallel (of all the documents): the phases forked by the
+ * passes, and the chunks of the bracket scan of a large document.
+ *
+ * The threads are created when needed and end when they are idle for a while. When they are all
+ * busy, the work is run by the thread which hands it over, so it never waits for a thread.
+ */
+public final class ProcessingExecutor {
+    private static final int MAX_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() - 1);
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private ProcessingExecutor() {
+    }
+
+    /**
+     * @return true if work handed to the executor may run in parallel with the thread which hands it
+     */
+    public static boolean isParallel() {
+        return Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    /**
+     * Runs the task on one of the threads, or on the calling thread if they are all busy
+     */
+    public static void execute(final Runnable task) {
+        getExecutor().execute(task);
+    }
+
+    /**
+     * Stops the threads once they finish their current work (called when the plugin is stopped). The
+     * work handed over later starts new threads.
+     */
+    public static synchronized void shutdown() {
+        if (sExecutor != null) {
+            sExecutor.shutdown();
+            sExecutor = null;
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(0, MAX_THREADS, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+                final Thread thread = new Thread(runnable, "Bracketeer processing"); //$NON-NLS-1$
+                thread.setDaemon(true);
+                thread.setPriority(Thread.NORM_PRIORITY - 1);
+                return thread;
+            }, (task, executor) -> task.run()); // also when the executor was shut down meanwhile
+        }
+        return sExecutor;
+    }
+}
@@ -18,7 +18,7 @@ public class SingleBracket {
     char _char;
 
     public SingleBracket(final int offset, final boolean isOpening, final char ch) {
-        _position = new Position(offset, 1);
+        _position = new TrackedPosition(offset, 1);
         _isOpening = isOpening;
         _char = ch;
     }
@@ -45,7 +45,7 @@ public class SingleBracket {
 
     @Override
     public String toString() {
-        return String.format("[offset=%1$d, isOpening=%2$b]", _position.offset, _isOpening); //$NON-NLS-1$
+        return String.format("[offset=%1$d, isOpening=%2$b]", _position.getOffset(), _isOpening); //$NON-NLS-1$
     }
 
     @Override
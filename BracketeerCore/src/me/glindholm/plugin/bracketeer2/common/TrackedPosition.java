@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) Gil Barash - chookapp@yahoo.com
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Gil Barash - initial API and implementation
+ *******************************************************************************/
+package me.glindholm.plugin.bracketeer2.common;
+
+import org.eclipse.jface.text.Position;
+
+/**
+ * A position which may be kept current by a {@link PositionTree} (instead of by the document).
+ *
+ * The tree shifts the positions lazily, so the offset is brought up to date when it is read through
+ * the methods of the position (the offset field itself shouldn't be read directly).
+ */
+public class TrackedPosition extends Position {
+    // set while the position is kept current by a tree
+    PositionTree _tree;
+    int _version;
+
+    // the position's node in the tree
+    int _priority;
+    // the offset of the position, once the shifts of the ancestors are added to it
+    int _key;
+    // a shift not yet added to the children's keys
+    int _shift;
+    TrackedPosition _left;
+    TrackedPosition _right;
+    TrackedPosition _parent;
+
+    // the container's entry for the object the position belongs to (so no map is needed to find it)
+    private Object _owner;
+
+    public TrackedPosition(final int offset, final int length) {
+        super(offset, length);
+    }
+
+    public Object getOwner() {
+        return _owner;
+    }
+
+    public void setOwner(final Object owner) {
+        _owner = owner;
+    }
+
+    private void sync() {
+        final PositionTree tree = _tree;
+        if (tree != null) {
+            tree.sync(this);
+        }
+    }
+
+    @Override
+    public int getOffset() {
+        sync();
+        return super.getOffset();
+    }
+
+    @Override
+    public boolean includes(final int index) {
+        sync();
+        return super.includes(index);
+    }
+
+    @Override
+    public boolean overlapsWith(final int rangeOffset, final int rangeLength) {
+        sync();
+        return super.overlapsWith(rangeOffset, rangeLength);
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        sync();
+        if (other instanceof final TrackedPosition position) {
+            position.sync();
+        }
+        return super.equals(other);
+    }
+
+    @Override
+    public int hashCode() {
+        sync();
+        return super.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        sync();
+        return super.toString();
+    }
+}
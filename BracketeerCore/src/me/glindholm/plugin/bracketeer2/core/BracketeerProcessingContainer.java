@@ -10,15 +10,25 @@
  *******************************************************************************/
 package me.glindholm.plugin.bracketeer2.core;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 import org.eclipse.core.runtime.Assert;
 import org.eclipse.jface.text.BadLocationException;
-import org.eclipse.jface.text.BadPositionCategoryException;
-import org.eclipse.jface.text.DefaultPositionUpdater;
+import org.eclipse.jface.text.DocumentEvent;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IPositionUpdater;
 import org.eclipse.jface.text.ISynchronizable;
@@ -29,15 +39,29 @@ import me.glindholm.plugin.bracketeer2.Activator;
 import me.glindholm.plugin.bracketeer2.common.BracketsPair;
 import me.glindholm.plugin.bracketeer2.common.Hint;
 import me.glindholm.plugin.bracketeer2.common.IBracketeerProcessingContainer;
+import me.glindholm.plugin.bracketeer2.common.PositionTree;
 import me.glindholm.plugin.bracketeer2.common.SingleBracket;
+import me.glindholm.plugin.bracketeer2.common.TrackedPosition;
 
 public class BracketeerProcessingContainer implements IDisposable, IBracketeerProcessingContainer {
     private class ObjectContainer<T> {
         private final T _object;
+        private final ObjectList<T> _list;
+        // the generation of the list in which the object was last added (or confirmed)
+        private int _generation;
         private boolean _toDelete;
-
-        public ObjectContainer(final T obj) {
+        // the links of the list
+        private ObjectContainer<T> _prev;
+        private ObjectContainer<T> _next;
+        // for a pair: the innermost pair which holds it (which may have been removed since), and whether
+        // it crosses another pair
+        private ObjectContainer<T> _parent;
+        private boolean _crossing;
+
+        public ObjectContainer(final ObjectList<T> list, final T obj) {
             _object = obj;
+            _list = list;
+            _generation = list._generation;
         }
 
         public T getObject() {
@@ -45,47 +69,433 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
         }
 
         public boolean isToDelete() {
-            return _toDelete;
+            return _toDelete || _generation != _list._generation;
         }
 
         public void setToDelete(final boolean toDelete) {
-            _toDelete = toDelete;
+            if (toDelete) {
+                _toDelete = true;
+                _list._marked.add(this);
+            } else {
+                _list.confirm(this);
+            }
         }
+    }
 
-        @Override
-        public boolean equals(final Object other) {
-            if (other == null) {
+    /**
+     * The objects of one kind, in the order they were last added or confirmed.
+     *
+     * Marking all the objects only starts a new generation: the objects of the older generations are
+     * the ones to be deleted, and are always at the head of the list (confirming an object moves it to
+     * the tail). So they are found without walking the whole list, as are the objects which were marked
+     * one by one.
+     */
+    private class ObjectList<T> implements Iterable<ObjectContainer<T>> {
+        private ObjectContainer<T> _head;
+        private ObjectContainer<T> _tail;
+        private int _size;
+        private final Set<ObjectContainer<T>> _marked;
+        private int _generation;
+
+        public ObjectList() {
+            _marked = new HashSet<>();
+            _generation = 0;
+        }
+
+        public ObjectContainer<T> add(final T obj) {
+            final ObjectContainer<T> objCont = new ObjectContainer<>(this, obj);
+            link(objCont);
+            _size++;
+            return objCont;
+        }
+
+        public boolean remove(final ObjectContainer<T> objCont) {
+            _marked.remove(objCont);
+            if (!contains(objCont)) {
                 return false;
             }
+            unlink(objCont);
+            _size--;
+            return true;
+        }
+
+        private boolean contains(final ObjectContainer<T> objCont) {
+            return objCont._list == this && (objCont._prev != null || _head == objCont);
+        }
 
-            if (other instanceof ObjectContainer<?>) {
-                return _object.equals(((ObjectContainer<?>) other)._object);
+        private void link(final ObjectContainer<T> objCont) {
+            objCont._prev = _tail;
+            objCont._next = null;
+            if (_tail == null) {
+                _head = objCont;
+            } else {
+                _tail._next = objCont;
             }
+            _tail = objCont;
+        }
 
-            return _object.equals(other);
+        private void unlink(final ObjectContainer<T> objCont) {
+            if (objCont._prev == null) {
+                _head = objCont._next;
+            } else {
+                objCont._prev._next = objCont._next;
+            }
+            if (objCont._next == null) {
+                _tail = objCont._prev;
+            } else {
+                objCont._next._prev = objCont._prev;
+            }
+            objCont._prev = null;
+            objCont._next = null;
+        }
+
+        public void markAll() {
+            _generation++;
+        }
+
+        private void confirm(final ObjectContainer<T> objCont) {
+            objCont._toDelete = false;
+            _marked.remove(objCont);
+            if (objCont._generation != _generation) {
+                objCont._generation = _generation;
+                unlink(objCont);
+                link(objCont);
+            }
+        }
+
+        /**
+         * Removes the objects which are marked to be deleted
+         *
+         * @return the removed objects
+         */
+        public List<ObjectContainer<T>> removeMarked() {
+            final List<ObjectContainer<T>> ret = new ArrayList<>();
+            while (_head != null && _head._generation != _generation) {
+                final ObjectContainer<T> objCont = _head;
+                unlink(objCont);
+                ret.add(objCont);
+            }
+
+            for (final ObjectContainer<T> objCont : _marked) {
+                if (contains(objCont)) {
+                    unlink(objCont);
+                    ret.add(objCont);
+                }
+            }
+            _marked.clear();
+            _size -= ret.size();
+            return ret;
+        }
+
+        public int size() {
+            return _size;
+        }
+
+        @Override
+        public Iterator<ObjectContainer<T>> iterator() {
+            return new Iterator<>() {
+                private ObjectContainer<T> _nextCont = _head;
+
+                @Override
+                public boolean hasNext() {
+                    return _nextCont != null;
+                }
+
+                @Override
+                public ObjectContainer<T> next() {
+                    if (_nextCont == null) {
+                        throw new NoSuchElementException();
+                    }
+                    final ObjectContainer<T> ret = _nextCont;
+                    _nextCont = ret._next;
+                    return ret;
+                }
+            };
+        }
+    }
+
+    /**
+     * The objects of a list, by their positions. The position tree finds the positions at an offset,
+     * and the index tells which objects they belong to (an equal object has the same positions, so it
+     * is looked for only among the objects at the offset of one of its positions).
+     *
+     * The positions point at the object containers which own them, so the index stays valid as the
+     * document changes, and doesn't keep an entry of its own for every position. The objects which
+     * lost a position to a change are kept aside, as the tree doesn't find such a position anymore.
+     */
+    private class ObjectIndex<T> {
+        private final ObjectList<T> _list;
+        private final Set<ObjectContainer<T>> _broken;
+        private final ToIntFunction<T> _offsetOf;
+        private final Function<T, List<Position>> _positionsOf;
+
+        /**
+         * @param list        the list of the indexed objects
+         * @param offsetOf    the offset by which an object is looked for
+         * @param positionsOf the positions of an object (which are tracked by the position tree)
+         */
+        public ObjectIndex(final ObjectList<T> list, final ToIntFunction<T> offsetOf, final Function<T, List<Position>> positionsOf) {
+            _list = list;
+            _broken = new HashSet<>();
+            _offsetOf = offsetOf;
+            _positionsOf = positionsOf;
+        }
+
+        public void add(final ObjectContainer<T> objCont) {
+            for (final Position pos : _positionsOf.apply(objCont.getObject())) {
+                if (pos instanceof final TrackedPosition trackedPosition) {
+                    trackedPosition.setOwner(objCont);
+                }
+            }
+        }
+
+        public void remove(final ObjectContainer<T> objCont) {
+            for (final Position pos : _positionsOf.apply(objCont.getObject())) {
+                if (getOwner(pos) == objCont) {
+                    ((TrackedPosition) pos).setOwner(null);
+                }
+            }
+            _broken.remove(objCont);
+        }
+
+        public void positionsDeleted(final List<TrackedPosition> deleted) {
+            for (final TrackedPosition pos : deleted) {
+                final ObjectContainer<T> objCont = getOwner(pos);
+                if (objCont != null) {
+                    _broken.add(objCont);
+                }
+            }
+        }
+
+        /**
+         * @return the objects which lost a position to a change of the document
+         */
+        public Set<ObjectContainer<T>> getBroken() {
+            return _broken;
+        }
+
+        /**
+         * @return the objects which have a position overlapping the region (an object whose position
+         *         was deleted is found by its other positions only)
+         */
+        public Set<ObjectContainer<T>> find(final int offset, final int length) {
+            final Set<ObjectContainer<T>> ret = new LinkedHashSet<>();
+            for (final TrackedPosition pos : _positions.find(offset, length)) {
+                final ObjectContainer<T> objCont = getOwner(pos);
+                if (objCont != null) {
+                    ret.add(objCont);
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * @return the indexed object which has the position, or null if there is none
+         */
+        @SuppressWarnings("unchecked")
+        public ObjectContainer<T> getOwner(final Position pos) {
+            if (pos instanceof final TrackedPosition trackedPosition && trackedPosition.getOwner() instanceof final ObjectContainer<?> objCont
+                    && objCont._list == _list) {
+                return (ObjectContainer<T>) objCont;
+            }
+            return null;
+        }
+
+        public ObjectContainer<T> findExisting(final T obj) {
+            for (final TrackedPosition pos : _positions.find(_offsetOf.applyAsInt(obj), 1)) {
+                final ObjectContainer<T> objCont = getOwner(pos);
+                if (objCont != null && objCont.getObject().equals(obj)) {
+                    return objCont;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The objects which were added and removed since the listeners were last notified (an object
+     * which was added and then removed is not reported at all)
+     */
+    private static class Changes<T> {
+        private final Set<T> _added;
+        private final Set<T> _removed;
+
+        public Changes() {
+            _added = Collections.newSetFromMap(new IdentityHashMap<>());
+            _removed = Collections.newSetFromMap(new IdentityHashMap<>());
+        }
+
+        public void added(final T obj) {
+            _added.add(obj);
+        }
+
+        public void removed(final T obj) {
+            if (!_added.remove(obj)) {
+                _removed.add(obj);
+            }
+        }
+
+        public boolean isEmpty() {
+            return _added.isEmpty() && _removed.isEmpty();
+        }
+
+        public List<T> takeAdded() {
+            final List<T> ret = new ArrayList<>(_added);
+            _added.clear();
+            return ret;
+        }
+
+        public List<T> takeRemoved() {
+            final List<T> ret = new ArrayList<>(_removed);
+            _removed.clear();
+            return ret;
+        }
+    }
+
+    /**
+     * The objects of the container, as they were when the processing last published them.
+     *
+     * The UI reads the objects often, while the processing changes them a lot during a pass. So the
+     * changes are published (when a pass, or a part of it, is complete) by replacing the snapshot as a
+     * whole, and the snapshot is read without taking the document's lock. The positions of the objects
+     * are still kept current by the position tree.
+     */
+    private static class Snapshot {
+        private final int _version;
+        private final List<BracketsPair> _pairs;
+        private final List<SingleBracket> _singles;
+        private final List<Hint> _hints;
+        // the spans follow the positions as the document changes
+        private final Spans _spans;
+        // moving the text doesn't change the nesting of the pairs
+        private final Map<BracketsPair, Nesting> _nesting;
+        // true if some of the pairs cross each other (such as "([)]")
+        private final boolean _crossing;
+
+        public Snapshot(final int version, final List<BracketsPair> pairs, final List<SingleBracket> singles, final List<Hint> hints, final Spans spans,
+                final Map<BracketsPair, Nesting> nesting, final boolean crossing) {
+            _version = version;
+            _pairs = pairs;
+            _singles = singles;
+            _hints = hints;
+            _spans = spans;
+            _nesting = nesting;
+            _crossing = crossing;
+        }
+    }
+
+    /**
+     * The place of a pair among the pairs of a snapshot
+     */
+    private static class Nesting {
+        private final BracketsPair _parent;
+        private final int _depth;
+
+        public Nesting(final BracketsPair parent, final int depth) {
+            _parent = parent;
+            _depth = depth;
+        }
+    }
+
+    /**
+     * The spans of the pairs, and the positions of the brackets and of the hints of a snapshot.
+     *
+     * They are created while the document's lock is held, which reads their offsets, and are built
+     * (sorted) by the processing after releasing it, before the snapshot is published.
+     */
+    private static class Spans {
+        private final IntervalIndex<BracketsPair> _pairSpans;
+        private final IntervalIndex<BracketsPair> _bracketSpans;
+        private final IntervalIndex<SingleBracket> _singleSpans;
+        private final IntervalIndex<Hint> _hintSpans;
+
+        public Spans(final List<BracketsPair> pairs, final List<SingleBracket> singles, final List<Hint> hints) {
+            _pairSpans = new IntervalIndex<>();
+            _bracketSpans = new IntervalIndex<>();
+            for (final BracketsPair pair : pairs) {
+                final Position opBrPos = pair.getOpeningBracket().getPosition();
+                final Position clBrPos = pair.getClosingBracket().getPosition();
+                if (opBrPos != null && clBrPos != null) {
+                    _pairSpans.add(opBrPos, clBrPos, pair);
+                }
+
+                for (final SingleBracket br : pair.getBrackets()) {
+                    final Position pos = br.getPosition();
+                    if (pos != null) {
+                        _bracketSpans.add(pos, pair);
+                    }
+                }
+            }
+            _pairSpans.capture();
+            _bracketSpans.capture();
+
+            _singleSpans = new IntervalIndex<>();
+            for (final SingleBracket br : singles) {
+                final Position pos = br.getPosition();
+                if (pos != null) {
+                    _singleSpans.add(pos, br);
+                }
+            }
+            _singleSpans.capture();
+
+            _hintSpans = new IntervalIndex<>();
+            for (final Hint hint : hints) {
+                final Position pos = hint.getHintPosition();
+                if (pos != null) {
+                    _hintSpans.add(pos, hint);
+                }
+            }
+            _hintSpans.capture();
+        }
+
+        public void build() {
+            _pairSpans.build();
+            _bracketSpans.build();
+            _singleSpans.build();
+            _hintSpans.build();
         }
     }
 
     private final IDocument _doc;
     private Object _docLock;
 
-    private final List<ObjectContainer<SingleBracket>> _singleBrackets;
-    private final List<ObjectContainer<BracketsPair>> _bracketsPairList;
-    private final List<ObjectContainer<Hint>> _hints;
+    private final ObjectList<SingleBracket> _singleBrackets;
+    private final ObjectList<BracketsPair> _bracketsPairList;
+    private final ObjectList<Hint> _hints;
+
+    private final ObjectIndex<SingleBracket> _singleBracketsIndex;
+    private final ObjectIndex<BracketsPair> _bracketsPairIndex;
+    private final ObjectIndex<Hint> _hintsIndex;
 
-    private final String _positionCategory;
+    // the objects as they were last published (replaced as a whole, never changed)
+    private volatile Snapshot _published;
+    // the version of the last snapshot taken (guarded by _docLock), which may not be published yet
+    private int _version;
+    private final Object _publishLock;
+
+    private final PositionTree _positions;
     private final IPositionUpdater _positionUpdater;
     private final List<IProcessingContainerListener> _listeners;
 
-    private boolean _bracketsPairsTouched;
-    private boolean _singleBracketsTouched;
-    private boolean _hintsTouched;
-    private boolean _updatingListeners;
+    private final Changes<BracketsPair> _pairChanges;
+    private final Changes<SingleBracket> _singleChanges;
+    private final Changes<Hint> _hintChanges;
 
     public BracketeerProcessingContainer(final IDocument doc) {
-        _singleBrackets = new ArrayList<>();
-        _bracketsPairList = new LinkedList<>();
-        _hints = new LinkedList<>();
+        _singleBrackets = new ObjectList<>();
+        _bracketsPairList = new ObjectList<>();
+        _hints = new ObjectList<>();
+
+        _singleBracketsIndex = new ObjectIndex<>(_singleBrackets, br -> br.getPositionRaw().getOffset(), br -> List.of(br.getPositionRaw()));
+        _bracketsPairIndex = new ObjectIndex<>(_bracketsPairList, pair -> pair.getOpeningBracket().getPositionRaw().getOffset(),
+                pair -> List.of(pair.getOpeningBracket().getPositionRaw(), pair.getClosingBracket().getPositionRaw()));
+        _hintsIndex = new ObjectIndex<>(_hints, hint -> hint.getHintPositionRaw().getOffset(),
+                hint -> List.of(hint.getHintPositionRaw(), hint.getOriginPositionRaw()));
+        final Spans spans = new Spans(List.of(), List.of(), List.of());
+        spans.build();
+        _published = new Snapshot(0, List.of(), List.of(), List.of(), spans, Map.of(), false);
+        _version = 0;
+        _publishLock = new Object();
 
         _doc = doc;
         if (_doc instanceof ISynchronizable) {
@@ -94,25 +504,35 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
             _docLock = new Object();
         }
 
-        _positionCategory = "bracketeerPosition"; //$NON-NLS-1$
-
-        _doc.addPositionCategory(_positionCategory);
-        _positionUpdater = new DefaultPositionUpdater(_positionCategory);
+        // the positions are kept by the container, the document only reports its changes
+        _positions = new PositionTree();
+        _positionUpdater = (final DocumentEvent event) -> {
+            final List<TrackedPosition> deleted = _positions.update(event);
+            if (!deleted.isEmpty()) {
+                _bracketsPairIndex.positionsDeleted(deleted);
+                _singleBracketsIndex.positionsDeleted(deleted);
+                _hintsIndex.positionsDeleted(deleted);
+            }
+        };
         _doc.addPositionUpdater(_positionUpdater);
 
         _listeners = new LinkedList<>();
+        _pairChanges = new Changes<>();
+        _singleChanges = new Changes<>();
+        _hintChanges = new Changes<>();
 
-        _updatingListeners = false;
     }
 
     @Override
     public void dispose() {
         _doc.removePositionUpdater(_positionUpdater);
-        try {
-            _doc.removePositionCategory(_positionCategory);
-        } catch (final BadPositionCategoryException e) {
-            Activator.log(e);
-        }
+    }
+
+    /**
+     * @return the lock which guards the document (and this container)
+     */
+    public Object getDocumentLock() {
+        return _docLock;
     }
 
     public void addListener(final IProcessingContainerListener listener) {
@@ -129,7 +549,7 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
     public BracketsPair getMatchingPair(final int openOffset, final int closeOffset) {
 
         synchronized (_docLock) {
-            for (final ObjectContainer<BracketsPair> objCont : _bracketsPairList) {
+            for (final ObjectContainer<BracketsPair> objCont : _bracketsPairIndex.find(openOffset, 1)) {
                 if (objCont.isToDelete()) {
                     continue;
                 }
@@ -152,72 +572,65 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
         return null;
     }
 
-    public List<BracketsPair> getPairsSurrounding(final int offset) {
-        final List<BracketsPair> retVal = new LinkedList<>();
-
-        synchronized (_docLock) {
-            for (final ObjectContainer<BracketsPair> objCont : _bracketsPairList) {
-                final BracketsPair pair = objCont.getObject();
+    /*
+     * The queries below are answered from the published snapshot, without taking the document's lock
+     */
 
-                final Position opBrPos = pair.getOpeningBracket().getPosition();
-                final Position clBrPos = pair.getClosingBracket().getPosition();
-                if (opBrPos == null || clBrPos == null) {
-                    continue;
-                }
+    @Override
+    public List<BracketsPair> getPairsSurrounding(final int offset) {
+        // a pair has a single span
+        return new LinkedList<>(getSpans()._pairSpans.find(offset, offset + 1));
+    }
 
-                if (opBrPos.offset <= offset && clBrPos.offset > offset) {
-                    if (!retVal.contains(pair)) {
-                        retVal.add(pair);
-                    }
-                }
+    @Override
+    public List<BracketsPair> getMatchingPairs(final int startOffset, final int length) {
+        // both brackets of a pair may be in the region
+        final Set<BracketsPair> found = Collections.newSetFromMap(new IdentityHashMap<>());
+        final List<BracketsPair> retVal = new LinkedList<>();
+        for (final BracketsPair pair : getSpans()._bracketSpans.find(startOffset, startOffset + length)) {
+            if (found.add(pair)) {
+                retVal.add(pair);
             }
         }
         return retVal;
     }
 
-    public List<BracketsPair> getMatchingPairs(final int startOffset, final int length) {
-        final List<BracketsPair> retVal = new LinkedList<>();
-
+    /**
+     * @return the pairs which lost a bracket to a change of the document (including ones which were
+     *         not published yet), until they are removed
+     */
+    @Override
+    public List<BracketsPair> getBrokenPairs() {
         synchronized (_docLock) {
-            for (final ObjectContainer<BracketsPair> objCont : _bracketsPairList) {
-                final BracketsPair pair = objCont.getObject();
-
-                for (final SingleBracket br : pair.getBrackets()) {
-                    final Position pos = br.getPosition();
-                    if (pos != null && pos.overlapsWith(startOffset, length) && !retVal.contains(pair)) {
-                        retVal.add(pair);
-                        break;
-                    }
-                }
+            final List<BracketsPair> ret = new ArrayList<>();
+            for (final ObjectContainer<BracketsPair> objCont : _bracketsPairIndex.getBroken()) {
+                ret.add(objCont.getObject());
             }
+            return ret;
         }
-        return retVal;
     }
 
     public List<SingleBracket> getSingleBrackets() {
         final List<SingleBracket> ret = new LinkedList<>();
-        synchronized (_docLock) {
-            for (final ObjectContainer<SingleBracket> objCont : _singleBrackets) {
-                final SingleBracket br = objCont.getObject();
-
-                if (br.getPosition() != null) {
-                    ret.add(br);
-                }
+        for (final SingleBracket br : _published._singles) {
+            if (br.getPosition() != null) {
+                ret.add(br);
             }
         }
         return ret;
     }
 
-    public Hint getHint(final int startOffset) {
-        synchronized (_docLock) {
-            for (final ObjectContainer<Hint> objCont : _hints) {
-                final Hint hint = objCont.getObject();
+    /**
+     * @return the single brackets which overlap [startOffset, startOffset + length)
+     */
+    public List<SingleBracket> getSingleBrackets(final int startOffset, final int length) {
+        return new LinkedList<>(getSpans()._singleSpans.find(startOffset, startOffset + length));
+    }
 
-                final Position pos = hint.getHintPosition();
-                if (pos != null && pos.overlapsWith(startOffset, 1)) {
-                    return hint;
-                }
-            }
+    public Hint getHint(final int startOffset) {
+        final List<Hint> hints = getSpans()._hintSpans.find(startOffset, startOffset + 1);
+        if (!hints.isEmpty()) {
+            return hints.get(0);
         }
         return null;
     }
@@ -225,13 +638,23 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
     @Override
     public List<Hint> getHints() {
         final List<Hint> ret = new LinkedList<>();
-        synchronized (_docLock) {
-            for (final ObjectContainer<Hint> objCont : _hints) {
-                final Hint hint = objCont.getObject();
+        for (final Hint hint : _published._hints) {
+            if (!hint.hasDeletedPosition()) {
+                ret.add(hint);
+            }
+        }
+        return ret;
+    }
 
-                if (!hint.hasDeletedPosition()) {
-                    ret.add(hint);
-                }
+    /**
+     * @return the hints which are drawn in [startOffset, startOffset + length) (their origin may be
+     *         anywhere)
+     */
+    public List<Hint> getHints(final int startOffset, final int length) {
+        final List<Hint> ret = new LinkedList<>();
+        for (final Hint hint : getSpans()._hintSpans.find(startOffset, startOffset + length)) {
+            if (!hint.hasDeletedPosition()) {
+                ret.add(hint);
             }
         }
         return ret;
@@ -239,139 +662,336 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
 
     public List<BracketsPair> getBracketPairs() {
         final List<BracketsPair> ret = new LinkedList<>();
-        synchronized (_docLock) {
-            for (final ObjectContainer<BracketsPair> objCont : _bracketsPairList) {
-                final BracketsPair pair = objCont.getObject();
-                if (!pair.hasDeletedPosition()) {
-                    ret.add(pair);
-                }
+        for (final BracketsPair pair : _published._pairs) {
+            if (!pair.hasDeletedPosition()) {
+                ret.add(pair);
             }
         }
         return ret;
     }
 
+    /**
+     * @return the version of the published objects (incremented whenever a change is published)
+     */
+    public int getPublishedVersion() {
+        return _published._version;
+    }
+
+    /**
+     * @return the innermost pair whose brackets surround the offset (its parents surround it too, and
+     *         unless some pairs cross, they are all the pairs which surround it), or null
+     */
+    public BracketsPair getInnermostPairSurrounding(final int offset) {
+        BracketsPair ret = null;
+        for (final BracketsPair pair : getSpans()._pairSpans.find(offset, offset + 1)) {
+            if (ret == null || pair.getOpeningBracket().getPositionRaw().getOffset() > ret.getOpeningBracket().getPositionRaw().getOffset()) {
+                ret = pair;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the innermost pair which holds the given pair, or null if the pair is at the top level
+     *         (or is not one of the published pairs)
+     */
+    public BracketsPair getParent(final BracketsPair pair) {
+        final Nesting nesting = _published._nesting.get(pair);
+        return nesting == null ? null : nesting._parent;
+    }
+
+    /**
+     * @return the number of parents above the given pair (0 at the top level), or -1 if the pair is not
+     *         one of the published pairs
+     */
+    public int getDepth(final BracketsPair pair) {
+        final Nesting nesting = _published._nesting.get(pair);
+        return nesting == null ? -1 : nesting._depth;
+    }
+
+    /**
+     * @return true if some of the published pairs cross each other (such as "([)]"). A pair then isn't
+     *         held by all the pairs which surround it, so they aren't all found by walking up its
+     *         parents.
+     */
+    public boolean hasCrossingPairs() {
+        return _published._crossing;
+    }
+
+    private Spans getSpans() {
+        return _published._spans;
+    }
+
     public void markAllToBeDeleted() {
         synchronized (_docLock) {
-            for (final ObjectContainer<BracketsPair> objCont : _bracketsPairList) {
-                objCont.setToDelete(true);
-            }
+            _bracketsPairList.markAll();
+            _singleBrackets.markAll();
+            _hints.markAll();
+        }
+    }
 
-            for (final ObjectContainer<SingleBracket> objCont : _singleBrackets) {
-                objCont.setToDelete(true);
+    @Override
+    public void markToBeDeleted(final int startOffset, final int length) {
+        synchronized (_docLock) {
+            if (isWholeDocument(startOffset, length)) {
+                _bracketsPairList.markAll();
+                _singleBrackets.markAll();
+                return;
             }
 
-            for (final ObjectContainer<Hint> objCont : _hints) {
-                objCont.setToDelete(true);
-            }
+            markToBeDeleted(_bracketsPairIndex, startOffset, length);
+            markToBeDeleted(_singleBracketsIndex, startOffset, length);
         }
     }
 
-    public void deleteAllMarked() {
+    /**
+     * Marks the objects which overlap the region, and the ones which lost a position
+     */
+    private static <T> void markToBeDeleted(final ObjectIndex<T> index, final int startOffset, final int length) {
+        for (final ObjectContainer<T> objCont : index.getBroken()) {
+            objCont.setToDelete(true);
+        }
+        for (final ObjectContainer<T> objCont : index.find(startOffset, length)) {
+            objCont.setToDelete(true);
+        }
+    }
+
+    @Override
+    public void publish(final int startOffset, final int length) {
+        deleteMarked(startOffset, length);
+        updateComplete();
+    }
+
+    /**
+     * Deletes the pairs which are marked to be deleted and are inside the region. Such a pair has a
+     * bracket in the region, or has lost both of its brackets, so only those pairs are visited.
+     */
+    public void deleteMarked(final int startOffset, final int length) {
         synchronized (_docLock) {
-            {
-                final Iterator<ObjectContainer<BracketsPair>> it = _bracketsPairList.iterator();
-                while (it.hasNext()) {
-                    final ObjectContainer<BracketsPair> objCont = it.next();
-
-                    if (objCont.isToDelete()) {
-                        _bracketsPairsTouched = true;
-                        for (final SingleBracket bracket : objCont.getObject().getBrackets()) {
-                            delete(bracket.getPositionRaw());
-                        }
-                        it.remove();
+            final List<ObjectContainer<BracketsPair>> toDelete;
+            if (isWholeDocument(startOffset, length)) {
+                toDelete = _bracketsPairList.removeMarked();
+            } else {
+                final Set<ObjectContainer<BracketsPair>> candidates = _bracketsPairIndex.find(startOffset, length);
+                candidates.addAll(_bracketsPairIndex.getBroken());
+                toDelete = new ArrayList<>();
+                for (final ObjectContainer<BracketsPair> objCont : candidates) {
+                    if (objCont.isToDelete() && isInside(objCont.getObject(), startOffset, length)) {
+                        toDelete.add(objCont);
                     }
                 }
             }
 
-            {
-                final Iterator<ObjectContainer<SingleBracket>> it = _singleBrackets.iterator();
-                while (it.hasNext()) {
-                    final ObjectContainer<SingleBracket> objCont = it.next();
-
-                    if (objCont.isToDelete()) {
-                        _singleBracketsTouched = true;
-                        delete(objCont.getObject().getPositionRaw());
-                        it.remove();
-                    }
+            for (final ObjectContainer<BracketsPair> objCont : toDelete) {
+                _pairChanges.removed(objCont.getObject());
+                for (final SingleBracket bracket : objCont.getObject().getBrackets()) {
+                    delete(bracket.getPositionRaw());
                 }
+                _bracketsPairIndex.remove(objCont);
+                _bracketsPairList.remove(objCont);
             }
+        }
+    }
 
-            {
-                final Iterator<ObjectContainer<Hint>> it = _hints.iterator();
-                while (it.hasNext()) {
-                    final ObjectContainer<Hint> objCont = it.next();
+    private static boolean isInside(final BracketsPair pair, final int startOffset, final int length) {
+        for (final SingleBracket br : pair.getBrackets()) {
+            final Position pos = br.getPosition();
+            if (pos != null && (pos.getOffset() < startOffset || pos.getOffset() >= startOffset + length)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                    if (objCont.isToDelete()) {
-                        _hintsTouched = true;
-                        delete(objCont.getObject().getOriginPositionRaw());
-                        delete(objCont.getObject().getHintPositionRaw());
-                        it.remove();
-                    }
+    @Override
+    public void markHintsToBeDeleted(final int startOffset, final int length) {
+        synchronized (_docLock) {
+            if (isWholeDocument(startOffset, length)) {
+                _hints.markAll();
+                return;
+            }
+
+            markToBeDeleted(_hintsIndex, startOffset, length);
+        }
+    }
+
+    /**
+     * @return true if every object overlaps the region (an object whose position was deleted is marked
+     *         anyway)
+     */
+    private boolean isWholeDocument(final int startOffset, final int length) {
+        return startOffset <= 0 && startOffset + length >= _doc.getLength();
+    }
+
+    /**
+     * Deletes the objects which are marked to be deleted. The objects of the older generations are at
+     * the head of their lists, so only the deleted objects are visited.
+     */
+    public void deleteAllMarked() {
+        synchronized (_docLock) {
+            final List<ObjectContainer<BracketsPair>> pairs = _bracketsPairList.removeMarked();
+            for (final ObjectContainer<BracketsPair> objCont : pairs) {
+                for (final SingleBracket bracket : objCont.getObject().getBrackets()) {
+                    delete(bracket.getPositionRaw());
                 }
+                _bracketsPairIndex.remove(objCont);
+                _pairChanges.removed(objCont.getObject());
+            }
+
+            final List<ObjectContainer<SingleBracket>> singles = _singleBrackets.removeMarked();
+            for (final ObjectContainer<SingleBracket> objCont : singles) {
+                delete(objCont.getObject().getPositionRaw());
+                _singleBracketsIndex.remove(objCont);
+                _singleChanges.removed(objCont.getObject());
+            }
+
+            final List<ObjectContainer<Hint>> hints = _hints.removeMarked();
+            for (final ObjectContainer<Hint> objCont : hints) {
+                delete(objCont.getObject().getOriginPositionRaw());
+                delete(objCont.getObject().getHintPositionRaw());
+                _hintsIndex.remove(objCont);
+                _hintChanges.removed(objCont.getObject());
             }
         }
         if (Activator.DEBUG) {
-            try {
-                Activator.trace("Positions tracked = " + _doc.getPositions(_positionCategory).length); //$NON-NLS-1$
-            } catch (final BadPositionCategoryException e) {
-                Activator.log(e);
-            }
+            Activator.trace("Positions tracked = " + _positions.size()); //$NON-NLS-1$
             Activator.trace("Pairs = " + _bracketsPairList.size()); //$NON-NLS-1$
             Activator.trace("Singles = " + _singleBrackets.size()); //$NON-NLS-1$
             Activator.trace("Hints = " + _hints.size()); //$NON-NLS-1$
         }
     }
 
+    /**
+     * Publishes the objects (if any of them changed) and notifies the listeners of the changes.
+     *
+     * The objects are taken under the document's lock, while their spans are sorted after it is
+     * released, so typing isn't held up by it. A phase which runs in parallel may publish too, so a
+     * snapshot is published only if no later one was.
+     */
     public void updateComplete() {
-        _updatingListeners = true;
-
-        for (final IProcessingContainerListener listener : _listeners) {
-            listener.containerUpdated(_bracketsPairsTouched, _singleBracketsTouched, _hintsTouched);
+        final ContainerDelta delta;
+        Snapshot snapshot = null;
+        synchronized (_docLock) {
+            if (!_pairChanges.isEmpty() || !_singleChanges.isEmpty() || !_hintChanges.isEmpty()) {
+                final List<BracketsPair> pairs = toList(_bracketsPairList);
+                final List<SingleBracket> singles = toList(_singleBrackets);
+                final List<Hint> hints = toList(_hints);
+                final Map<BracketsPair, Nesting> nesting = new IdentityHashMap<>(pairs.size() * 2);
+                final boolean crossing = collectNesting(nesting);
+                snapshot = new Snapshot(++_version, pairs, singles, hints, new Spans(pairs, singles, hints), nesting, crossing);
+            }
+            delta = new ContainerDelta(_pairChanges.takeAdded(), _pairChanges.takeRemoved(), _singleChanges.takeAdded(), _singleChanges.takeRemoved(),
+                    _hintChanges.takeAdded(), _hintChanges.takeRemoved());
         }
 
-        _bracketsPairsTouched = false;
-        _singleBracketsTouched = false;
-        _hintsTouched = false;
+        if (snapshot != null) {
+            snapshot._spans.build();
+            synchronized (_publishLock) {
+                if (snapshot._version > _published._version) {
+                    _published = snapshot;
+                }
+            }
+        }
 
-        _updatingListeners = false;
+        for (final IProcessingContainerListener listener : _listeners) {
+            listener.containerUpdated(delta);
+        }
     }
 
-    public boolean isUpdatingListeners() {
-        return _updatingListeners;
+    @Override
+    public void add(final BracketsPair pair) throws BadLocationException {
+        add(pair, null, false);
     }
 
     @Override
-    public void add(final BracketsPair pair) throws BadLocationException {
+    public void add(final BracketsPair pair, final BracketsPair parent, final boolean crossing) throws BadLocationException {
         synchronized (_docLock) {
-            final ObjectContainer<BracketsPair> existing = findExistingObj(_bracketsPairList, pair);
-
-            if (existing != null) {
-                if (existing.equals(pair) && !existing.getObject().hasDeletedPosition()) {
-                    existing.setToDelete(false);
-                    return;
-                } else {
+            final ObjectContainer<BracketsPair> existing = _bracketsPairIndex.findExisting(pair);
+
+            final ObjectContainer<BracketsPair> pairContainer;
+            if (existing != null && existing.getObject().equals(pair) && !existing.getObject().hasDeletedPosition()) {
+                existing.setToDelete(false);
+                pairContainer = existing;
+            } else {
+                if (existing != null) {
                     deletePair(existing);
                 }
+
+                _pairChanges.added(pair);
+
+                pairContainer = _bracketsPairList.add(pair);
+                _bracketsPairIndex.add(pairContainer);
+                for (final SingleBracket br : pair.getBrackets()) {
+                    addPosition(br.getPosition());
+                }
             }
 
-            _bracketsPairsTouched = true;
+            pairContainer._parent = parent == null ? null : _bracketsPairIndex.findExisting(parent);
+            if (pairContainer._parent == null) {
+                pairContainer._parent = findHolder(pair);
+            }
+            pairContainer._crossing = crossing;
+        }
+    }
 
-            final ObjectContainer<BracketsPair> pairContainer = new ObjectContainer<>(pair);
+    /**
+     * @return the innermost published pair which holds the pair and is kept by the processing, or null
+     *         if there is none (used for a pair added without its parent, such as the outermost pair
+     *         of a region which was scanned again)
+     */
+    private ObjectContainer<BracketsPair> findHolder(final BracketsPair pair) {
+        final int openOffset = pair.getOpeningBracket().getPositionRaw().getOffset();
+        final int closeOffset = pair.getClosingBracket().getPositionRaw().getOffset();
+        ObjectContainer<BracketsPair> ret = null;
+        int retOffset = -1;
+        for (final BracketsPair holder : getSpans()._pairSpans.find(openOffset, openOffset + 1)) {
+            final int holderOffset = holder.getOpeningBracket().getPositionRaw().getOffset();
+            if (holderOffset >= openOffset || holderOffset <= retOffset || holder.getClosingBracket().getPositionRaw().getOffset() <= closeOffset) {
+                continue;
+            }
+            final ObjectContainer<BracketsPair> objCont = _bracketsPairIndex.getOwner(holder.getOpeningBracket().getPositionRaw());
+            if (objCont != null && !objCont.isToDelete()) {
+                ret = objCont;
+                retOffset = holderOffset;
+            }
+        }
+        return ret;
+    }
 
-            _bracketsPairList.add(pairContainer);
-            for (final SingleBracket br : pair.getBrackets()) {
-                addPosition(br.getPosition());
+    /**
+     * Collects the parent and the depth of every pair. The parent of a pair may have been removed (if
+     * the pair wasn't added again since), so the first ancestor which is still in the container takes
+     * its place. The depths are set from the outer pairs in, so every pair is visited once.
+     *
+     * @return true if some of the pairs cross each other
+     */
+    private boolean collectNesting(final Map<BracketsPair, Nesting> nesting) {
+        boolean crossing = false;
+        final Deque<ObjectContainer<BracketsPair>> outer = new ArrayDeque<>();
+        for (final ObjectContainer<BracketsPair> objCont : _bracketsPairList) {
+            crossing |= objCont._crossing;
+            for (ObjectContainer<BracketsPair> pair = objCont; pair != null && !nesting.containsKey(pair.getObject()); pair = pair._parent) {
+                while (pair._parent != null && !_bracketsPairList.contains(pair._parent)) {
+                    pair._parent = pair._parent._parent;
+                }
+                outer.push(pair);
+            }
+            while (!outer.isEmpty()) {
+                final ObjectContainer<BracketsPair> pair = outer.pop();
+                final BracketsPair parent = pair._parent == null ? null : pair._parent.getObject();
+                nesting.put(pair.getObject(), new Nesting(parent, parent == null ? 0 : nesting.get(parent)._depth + 1));
             }
         }
+        return crossing;
     }
 
     @Override
     public void add(final SingleBracket bracket) throws BadLocationException {
         synchronized (_docLock) {
-            final ObjectContainer<SingleBracket> existing = findExistingObj(_singleBrackets, bracket);
+            final ObjectContainer<SingleBracket> existing = _singleBracketsIndex.findExisting(bracket);
 
             if (existing != null) {
-                if (existing.equals(bracket) && existing.getObject().getPosition() != null) {
+                if (existing.getObject().equals(bracket) && existing.getObject().getPosition() != null) {
                     existing.setToDelete(false);
                     return;
                 } else {
@@ -379,9 +999,10 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
                 }
             }
 
-            _singleBracketsTouched = true;
+            _singleChanges.added(bracket);
 
-            _singleBrackets.add(new ObjectContainer<>(bracket));
+            final ObjectContainer<SingleBracket> bracketContainer = _singleBrackets.add(bracket);
+            _singleBracketsIndex.add(bracketContainer);
 
             addPosition(bracket.getPosition());
         }
@@ -390,10 +1011,10 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
     @Override
     public void add(final Hint hint) throws BadLocationException {
         synchronized (_docLock) {
-            final ObjectContainer<Hint> existing = findExistingObj(_hints, hint);
+            final ObjectContainer<Hint> existing = _hintsIndex.findExisting(hint);
 
             if (existing != null) {
-                if (existing.equals(hint) && !existing.getObject().hasDeletedPosition()) {
+                if (existing.getObject().equals(hint) && !existing.getObject().hasDeletedPosition()) {
                     existing.setToDelete(false);
                     return;
                 } else {
@@ -401,9 +1022,10 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
                 }
             }
 
-            _hintsTouched = true;
+            _hintChanges.added(hint);
 
-            _hints.add(new ObjectContainer<>(hint));
+            final ObjectContainer<Hint> hintContainer = _hints.add(hint);
+            _hintsIndex.add(hintContainer);
 
             addPosition(hint.getHintPositionRaw());
             addPosition(hint.getOriginPositionRaw());
@@ -411,30 +1033,22 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
     }
 
     private void addPosition(final Position position) throws BadLocationException {
-        try {
-            if (position != null) {
-                _doc.addPosition(_positionCategory, position);
-            }
-        } catch (final BadPositionCategoryException e) {
-            Activator.log(e);
+        if (position instanceof final TrackedPosition trackedPosition) {
+            _positions.add(trackedPosition, _doc.getLength());
         }
-
     }
 
-    private static <T> ObjectContainer<T> findExistingObj(final List<ObjectContainer<T>> objList, final T obj) {
+    private static <T> List<T> toList(final ObjectList<T> objList) {
+        final List<T> ret = new ArrayList<>(objList.size());
         for (final ObjectContainer<T> objCont : objList) {
-            if (objCont.equals(obj)) {
-                return objCont;
-            }
+            ret.add(objCont.getObject());
         }
-        return null;
+        return ret;
     }
 
     private void delete(final Position position) {
-        try {
-            _doc.removePosition(_positionCategory, position);
-        } catch (final BadPositionCategoryException e) {
-            Activator.log(e);
+        if (position instanceof final TrackedPosition trackedPosition) {
+            _positions.remove(trackedPosition);
         }
     }
 
@@ -442,6 +1056,8 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
         synchronized (_docLock) {
             final boolean found = _bracketsPairList.remove(objCont);
             Assert.isTrue(found);
+            _bracketsPairIndex.remove(objCont);
+            _pairChanges.removed(objCont.getObject());
 
             for (final SingleBracket bracket : objCont.getObject().getBrackets()) {
                 delete(bracket.getPositionRaw());
@@ -453,6 +1069,8 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
         synchronized (_docLock) {
             final boolean found = _singleBrackets.remove(objCont);
             Assert.isTrue(found);
+            _singleBracketsIndex.remove(objCont);
+            _singleChanges.removed(objCont.getObject());
 
             final SingleBracket bracket = objCont.getObject();
             delete(bracket.getPositionRaw());
@@ -463,6 +1081,8 @@ public class BracketeerProcessingContainer implements IDisposable, IBracketeerPr
         synchronized (_docLock) {
             final boolean found = _hints.remove(objCont);
             Assert.isTrue(found);
+            _hintsIndex.remove(objCont);
+            _hintChanges.removed(objCont.getObject());
 
             final Hint hint = objCont.getObject();
             delete(hint.getOriginPositionRaw());
@@ -15,8 +15,10 @@
 package me.glindholm.plugin.bracketeer2.core;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -27,14 +29,17 @@ import org.eclipse.core.resources.IMarker;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.runtime.Assert;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.jface.action.IStatusLineManager;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
 import org.eclipse.jface.text.IPaintPositionManager;
 import org.eclipse.jface.text.IPainter;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.ITextViewer;
 import org.eclipse.jface.text.ITextViewerExtension2;
 import org.eclipse.jface.text.ITextViewerExtension5;
+import org.eclipse.jface.text.IViewportListener;
 import org.eclipse.jface.text.JFaceTextUtil;
 import org.eclipse.jface.text.Position;
 import org.eclipse.jface.text.Region;
@@ -72,8 +77,13 @@ import me.glindholm.plugin.bracketeer2.core.ProcessorConfiguration.HintConfigura
 import me.glindholm.plugin.bracketeer2.extensionpoint.BracketeerProcessor;
 
 public class BracketsHighlighter
-implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProcessingContainerListener, IProcessorConfigurationListener, FocusListener {
+implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProcessingContainerListener, IProcessorConfigurationListener, FocusListener,
+IViewportListener {
 
+    // the least margin (in characters) kept around the visible part of the document when painting
+    private static final int PAINT_REGION_MIN_MARGIN = 8192;
+
+    private IEditorPart _part;
     private ISourceViewer _sourceViewer;
     private StyledText _textWidget;
     private ProcessingThread _processingThread;
@@ -81,9 +91,12 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
     private ProcessorConfiguration _conf;
     private IResource _resource;
     private IAnnotationModel _annotationModel;
-    private Map<Annotation, Position> _annotationMap;
+    // the annotations of the single brackets, by the brackets' positions
+    private Map<Position, Annotation> _annotationMap;
 
     private boolean _isActive;
+    // the document is too large, so the hints, the angular brackets and the annotations are left out
+    private boolean _degraded;
 
     private final List<PaintableBracket> _hoveredPairsToPaint;
     private final List<PaintableBracket> _surroundingPairsToPaint;
@@ -100,7 +113,20 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
     private int _caretOffset;
     private int m_hyperlinkModifiers;
 
+    // the part of the document which the single brackets and the hints are painted for (the visible
+    // part with a margin around it), or null for the whole document
+    private volatile IRegion _paintRegion;
+
+    // the parts of the widget to redraw on the next UI tick: the ones of the paintables which started (or
+    // stopped) being painted since the widget was last redrawn, or all of it (guarded by _damaged)
+    private final List<PaintableObject> _damaged;
+    private boolean _damagedAll;
+    // the modification stamp of the document when the first of _damaged was added
+    private long _damagedStamp;
+    private boolean _redrawScheduled;
+
     public BracketsHighlighter() {
+        _part = null;
         _sourceViewer = null;
         _processingThread = null;
         _textWidget = null;
@@ -108,9 +134,10 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
         _doc = null;
         _resource = null;
         _annotationModel = null;
-        _annotationMap = new HashMap<>();
+        _annotationMap = new IdentityHashMap<>();
 
         _isActive = false;
+        _degraded = false;
 
         _hoveredPairsToPaint = new LinkedList<>();
         _surroundingPairsToPaint = new LinkedList<>();
@@ -119,6 +146,10 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
         m_hoverEntryPoint = null;
         _hoveredHintToPaint = null;
         _popup = null;
+        _paintRegion = null;
+        _damaged = new ArrayList<>();
+        _damagedAll = false;
+        _redrawScheduled = false;
 
         _mousePointingAtHint = null;
         _mousePointingAtBracket = null;
@@ -139,6 +170,7 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
 
         final ITextViewerExtension2 extension = (ITextViewerExtension2) _sourceViewer;
         extension.removePainter(this);
+        _sourceViewer.removeViewportListener(this);
 
         if (_processingThread != null) {
             _processingThread.getBracketContainer().removeListener(this);
@@ -146,6 +178,7 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
             _processingThread = null;
         }
 
+        _part = null;
         _sourceViewer = null;
         _textWidget = null;
     }
@@ -158,8 +191,9 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
      ************************************************************/
 
     public void Init(final BracketeerProcessor processor, final IEditorPart part, final IDocument doc, final ITextViewer textViewer,
-            final ProcessorConfiguration conf) {
+            final ProcessorConfiguration conf, final int priority) {
 
+        _part = part;
         _sourceViewer = (ISourceViewer) textViewer;
         _textWidget = _sourceViewer.getTextWidget();
         _conf = conf;
@@ -181,16 +215,52 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
             _annotationModel = provider.getAnnotationModel(editor.getEditorInput());
         }
 
-        _processingThread = new ProcessingThread(doc, processor);
+        _processingThread = new ProcessingThread(doc, processor, priority);
+        updateLargeFilePolicy();
         _processingThread.getBracketContainer().addListener(this);
         _conf.addListener(this);
 
         final ITextViewerExtension2 extension = (ITextViewerExtension2) textViewer;
         extension.addPainter(this);
+        _sourceViewer.addViewportListener(this);
+        updateVisibleRegion();
+        updatePaintRegion();
 
         m_hyperlinkModifiers = _conf.getGeneralConfiguration().getHyperlinkModifiers();
     }
 
+    /**
+     * @param priority one of the ProcessingScheduler.PRIORITY_* constants
+     */
+    public void setProcessingPriority(final int priority) {
+        if (_processingThread != null) {
+            _processingThread.setPriority(priority);
+        }
+    }
+
+    /**
+     * @param suspended true if the editor isn't visible, so the document should be processed only once
+     *                  it is visible again
+     */
+    public void setProcessingSuspended(final boolean suspended) {
+        if (_processingThread != null) {
+            _processingThread.setSuspended(suspended);
+        }
+    }
+
+    /**
+     * Shows in the status line whether the document is too large to be fully processed. Called when the
+     * editor is activated.
+     */
+    public void showProcessingState() {
+        if (_part == null) {
+            return;
+        }
+
+        final IStatusLineManager statusLine = _part.getEditorSite().getActionBars().getStatusLineManager();
+        statusLine.setMessage(_degraded ? Messages.BracketsHighlighter_Degraded : null);
+    }
+
     public ISourceViewer getSourceViewer() {
         return _sourceViewer;
     }
@@ -376,6 +446,8 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
 
             final int startOfset = region.getOffset();
             final int length = region.getLength();
+            // the region may have grown (the widget was resized)
+            ensurePaintRegion(startOfset, startOfset + length);
 
             for (final PaintableObject paintObj : _singleBracketsToPaint) {
                 if (paintObj.getPosition().overlapsWith(startOfset, length)) {
@@ -431,16 +503,104 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
     @Override
     public void configurationUpdated() {
         m_hyperlinkModifiers = _conf.getGeneralConfiguration().getHyperlinkModifiers();
+        updateVisibleRegion();
+        updateLargeFilePolicy();
 
         boolean updated = false;
         updated |= clearSurroundingPairsToPaint();
         updated |= clearSingleBracketsToPaint();
-        rebuild(true, true, true, updated);
+        rebuild(null, updated);
+    }
+
+    /************************************************************
+     * IViewportListener interface
+     ************************************************************/
+
+    @Override
+    public void viewportChanged(final int verticalOffset) {
+        updateVisibleRegion();
+        updatePaintRegion();
+    }
+
+    /**
+     * Moves the paint region around the visible part of the document, if it is no longer in it
+     */
+    private void updatePaintRegion() {
+        final int start = getInclusiveTopIndexStartOffset();
+        final int end = getExclusiveBottomIndexEndOffset();
+        if (start == -1 || end < start) {
+            return;
+        }
+        ensurePaintRegion(start, end);
+    }
+
+    /**
+     * Makes sure the paint region holds [start, end). If it doesn't, the region is moved around it (with
+     * a margin of the same length on each side) and the single brackets and the hints are taken again
+     */
+    private void ensurePaintRegion(final int start, final int end) {
+        final IRegion region = _paintRegion;
+        if (region != null && region.getOffset() <= start && end <= region.getOffset() + region.getLength()) {
+            return;
+        }
+
+        final int margin = Math.max(end - start, PAINT_REGION_MIN_MARGIN);
+        final int paintStart = Math.max(0, start - margin);
+        final int paintEnd = Math.min(_doc.getLength(), end + margin);
+        _paintRegion = new Region(paintStart, Math.max(0, paintEnd - paintStart));
+
+        paintSingleBrackets();
+        updateHints();
+    }
+
+    /**
+     * Lets the processing know which part of the document to process first
+     */
+    private void updateVisibleRegion() {
+        if (_processingThread == null) {
+            return;
+        }
+
+        if (!_conf.getGeneralConfiguration().isProcessVisibleFirst()) {
+            _processingThread.setVisibleRegion(null);
+            return;
+        }
+
+        final int start = getInclusiveTopIndexStartOffset();
+        final int end = getExclusiveBottomIndexEndOffset();
+        if (start == -1 || end < start) {
+            return;
+        }
+        _processingThread.setVisibleRegion(new Region(start, end - start));
+    }
+
+    private void updateLargeFilePolicy() {
+        if (_processingThread == null) {
+            return;
+        }
+
+        final ProcessorConfiguration.GeneralConfiguration conf = _conf.getGeneralConfiguration();
+        _processingThread.setLargeFilePolicy(conf.isDegradeLargeFiles(), conf.getLargeFileSize(), conf.getSlowPassTime());
     }
 
     @Override
-    public void containerUpdated(final boolean bracketsPairsTouched, final boolean singleBracketsTouched, final boolean hintsTouched) {
-        rebuild(bracketsPairsTouched, singleBracketsTouched, hintsTouched, false);
+    public void containerUpdated(final ContainerDelta delta) {
+        final boolean degraded = _processingThread.isDegraded();
+        if (degraded == _degraded) {
+            rebuild(delta, false);
+            return;
+        }
+
+        _degraded = degraded;
+        _textWidget.getDisplay().asyncExec(() -> {
+            if (_part != null && _part.getSite().getPage().getActivePart() == _part) {
+                showProcessingState();
+            }
+        });
+
+        // the annotations are added (or removed) along with the single brackets
+        final boolean updated = clearSingleBracketsToPaint();
+        rebuild(null, updated);
     }
 
     /************************************************************
@@ -511,29 +671,151 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
      * the work itself
      ************************************************************/
 
-    private void rebuild(final boolean bracketsPairsTouched, final boolean singleBracketsTouched, final boolean hintsTouched, final boolean alwaysRedraw) {
+    /**
+     * Updates what is painted to the changes of the container
+     *
+     * @param delta        the changes, or null to rebuild everything
+     * @param alwaysRedraw whether the text has to be redrawn even if nothing changed
+     */
+    private void rebuild(final ContainerDelta delta, final boolean alwaysRedraw) {
+        if (alwaysRedraw) {
+            damageAll();
+        }
+
+        if (delta == null || delta.hasPairChanges()) {
+            // a pair which doesn't touch the caret can't be (or become) one of the surrounding pairs
+            if (delta == null || delta.touches(_caretOffset, 0)) {
+                updateSurroundingPairsToPaint(_caretOffset);
+            }
+            clearHoveredPairsToPaint();
+        }
+
+        if (delta == null) {
+            updateSingleBrackets();
+        } else if (delta.hasSingleChanges()) {
+            updateSingleBrackets(delta.getAddedSingles(), delta.getRemovedSingles());
+        }
 
-        boolean update = alwaysRedraw;
-        if (bracketsPairsTouched) {
-            update |= updateSurroundingPairsToPaint(_caretOffset);
-            update |= clearHoveredPairsToPaint();
+        // I'm ignoring the hints of the delta because the "line distance" might have been modified
+        updateHints();
+        clearHoveredHint();
+    }
+
+    /**
+     * Marks the parts of the widget the paintables are painted on to be redrawn. They are redrawn on
+     * the next UI tick, along with all the other parts marked until then.
+     *
+     * Should be called with the paintables which stop being painted (before they stop) and with the ones
+     * which start being painted.
+     */
+    private void damage(final Collection<? extends PaintableObject> paintables) {
+        if (paintables.isEmpty()) {
+            return;
         }
-        if (singleBracketsTouched) {
-            update |= updateSingleBrackets();
+
+        synchronized (_damaged) {
+            if (_damagedAll) {
+                return;
+            }
+            if (_damaged.isEmpty()) {
+                _damagedStamp = getModificationStamp();
+            }
+            _damaged.addAll(paintables);
+        }
+        scheduleRedraw();
+    }
+
+    private void damage(final PaintableObject paintable) {
+        if (paintable != null) {
+            damage(List.of(paintable));
+        }
+    }
+
+    /**
+     * Marks the whole widget to be redrawn on the next UI tick
+     */
+    private void damageAll() {
+        synchronized (_damaged) {
+            _damagedAll = true;
+            _damaged.clear();
+        }
+        scheduleRedraw();
+    }
+
+    private void scheduleRedraw() {
+        final StyledText st = _textWidget;
+        synchronized (_damaged) {
+            if (_redrawScheduled || st == null) {
+                return;
+            }
+            _redrawScheduled = true;
+        }
+        st.getDisplay().asyncExec(this::redrawDamaged);
+    }
+
+    /**
+     * Redraws the parts of the widget marked since the last time (SWT unites them into the region it
+     * paints)
+     */
+    private void redrawDamaged() {
+        final List<PaintableObject> damaged;
+        final boolean all;
+        final long stamp;
+        synchronized (_damaged) {
+            damaged = new ArrayList<>(_damaged);
+            all = _damagedAll;
+            stamp = _damagedStamp;
+            _damaged.clear();
+            _damagedAll = false;
+            _redrawScheduled = false;
+        }
+
+        if (_textWidget == null || _textWidget.isDisposed()) {
+            return;
+        }
+
+        // once the document changed, the positions of the paintables which stopped being painted (and
+        // aren't tracked anymore) no longer tell where they were painted
+        if (all || stamp != getModificationStamp()) {
+            _textWidget.redraw();
+            return;
         }
 
-        // I'm ignoring 'hintsTouched' because the "line distance" might have been modified
-        update |= updateHints();
-        update |= clearHoveredHint();
+        final int start = getInclusiveTopIndexStartOffset();
+        final int end = getExclusiveBottomIndexEndOffset();
+        final Rectangle clientArea = _textWidget.getClientArea();
+        final GC gc = new GC(_textWidget);
+        try {
+            for (final PaintableObject paintObj : damaged) {
+                final Position pos = paintObj.getPosition();
+                if (start != -1 && end >= start && (pos.getOffset() > end || pos.getOffset() + pos.getLength() < start)) {
+                    continue;
+                }
 
-        if (update) {
-            // TODO: optimize? (redraw only the needed sections)
-            _textWidget.getDisplay().asyncExec(() -> {
-                if (_textWidget != null) {
-                    _textWidget.redraw();
+                final Rectangle rect = paintObj.getWidgetRect(gc, _textWidget, _doc, getWidgetRange(pos.getOffset(), pos.getLength()));
+                if (rect == null) {
+                    continue;
                 }
-            });
+
+                if (paintObj instanceof PaintableHint) {
+                    // a hint may be painted italic (wider than its extent), and it's the last thing on its line
+                    rect.width = Math.max(rect.width, clientArea.x + clientArea.width - rect.x);
+                }
+                // one pixel is added on each side for the outline (and the underline) of the paintables
+                _textWidget.redraw(rect.x - 1, rect.y, rect.width + 2, rect.height, true);
+            }
+        } catch (final IllegalArgumentException e) {
+            _textWidget.redraw();
+        } finally {
+            gc.dispose();
+        }
+    }
+
+    private long getModificationStamp() {
+        if (_doc instanceof final IDocumentExtension4 doc) {
+            return doc.getModificationStamp();
         }
+        return IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
     }
 
     private void updateMousePointer() {
@@ -554,37 +836,13 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
 
     private void clearHyperlink() {
         if (_mousePointingAtHint != null) {
-            //            GC gc = new GC(_textWidget);
-            //
-            //            try
-            //            {
-            //                IRegion widgetRange = getWidgetRange(_mousePointingAtHint.getPosition().getOffset(),
-            //                                                     _mousePointingAtHint.getPosition().getLength());
-            //                Rectangle rect = _mousePointingAtHint.getWidgetRect(gc, _textWidget,
-            //                                                                    _sourceViewer.getDocument(), widgetRange);
-            //
-            //                _mousePointingAtHint.setUnderline(false);
-            //                if( rect != null )
-            //                    _textWidget.redraw(rect.x, rect.y, rect.width, rect.height, true);
-            //                else
-            //                    _textWidget.redraw();
-            //                _mousePointingAtHint = null;
-            //            }
-            //            finally
-            //            {
-            //                gc.dispose();
-            //            }
-
-            // unoptimize... (I'm not sure that the code above, which works, doesn't take more time...)
             _mousePointingAtHint.setUnderline(false);
-            _textWidget.redraw();
+            damage(_mousePointingAtHint);
             _mousePointingAtHint = null;
-
         }
 
         if (_mousePointingAtBracket != null) {
             clearHoveredPairsToPaint();
-            _textWidget.redraw();
             _mousePointingAtBracket = null;
         }
     }
@@ -607,9 +865,6 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
                 clearHoveredPairsToPaint();
                 clearHoveredHint();
                 clearPopup();
-
-                // TODO: optimize? (redraw only the needed sections)
-                _textWidget.redraw();
             }
 
             if (_mousePointingAtHint != null) {
@@ -621,7 +876,7 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
                 }
 
                 _mousePointingAtHint.setUnderline(false);
-                _textWidget.redraw();
+                damage(_mousePointingAtHint);
                 _mousePointingAtHint = null;
             }
 
@@ -631,7 +886,7 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
                 if (rect != null && rect.intersects(x, y, 1, 1)) {
                     _mousePointingAtHint = paintObj;
                     _mousePointingAtHint.setUnderline(true);
-                    _textWidget.redraw(rect.x, rect.y, rect.width, rect.height, true);
+                    damage(_mousePointingAtHint);
                     return;
                 }
             }
@@ -664,9 +919,6 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
         synchronized (_hoveredPairsToPaint) {
             addPaintableObjectsPairs(pairs, 0, 1, _hoveredPairsToPaint);
         }
-
-        // TODO: optimize? (redraw only the needed sections)
-        _textWidget.redraw();
     }
 
     private void jumpToPosition(final Position pos) {
@@ -679,15 +931,10 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
     }
 
     private void caretMovedTo(final int caretOffset) {
-        boolean update = updateSurroundingPairsToPaint(caretOffset);
-        update |= clearHoveredPairsToPaint();
-        update |= clearHoveredHint();
+        updateSurroundingPairsToPaint(caretOffset);
+        clearHoveredPairsToPaint();
+        clearHoveredHint();
         clearPopup();
-
-        if (update) {
-            // TODO: optimize? (redraw only the needed sections)
-            _textWidget.redraw();
-        }
     }
 
     private boolean updateSurroundingPairsToPaint(final int caretOffset) {
@@ -696,28 +943,33 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
         }
 
         final BracketeerProcessingContainer cont = _processingThread.getBracketContainer();
-        List<BracketsPair> listOfPairs = cont.getPairsSurrounding(caretOffset);
-
-        /* excluding... */
         final String includedPairs = _conf.getPairConfiguration().getSurroundingPairsToInclude();
-        final Iterator<BracketsPair> it = listOfPairs.iterator();
-        while (it.hasNext()) {
-            final BracketsPair pair = it.next();
-            for (final SingleBracket br : pair.getBrackets()) {
-                if (includedPairs.indexOf(br.getChar()) == -1) {
-                    it.remove();
+        final int count = _conf.getPairConfiguration().getSurroundingPairsCount();
+        final List<BracketsPair> listOfPairs = new ArrayList<>();
+
+        if (cont.hasCrossingPairs()) {
+            // the parents of a pair don't hold the pairs which cross it, so all the surrounding pairs are
+            // looked for
+            final List<BracketsPair> surrounding = cont.getPairsSurrounding(caretOffset);
+            surrounding.sort((pair1, pair2) -> Integer.compare(pair2.getOpeningBracket().getPositionRaw().getOffset(),
+                    pair1.getOpeningBracket().getPositionRaw().getOffset()));
+            for (final BracketsPair pair : surrounding) {
+                if (listOfPairs.size() >= count) {
                     break;
                 }
+                if (isSurroundingPairIncluded(pair, includedPairs)) {
+                    listOfPairs.add(pair);
+                }
             }
-
-            if (pair.getDistanceBetweenBrackets() - 1 < _conf.getPairConfiguration().getMinDistanceBetweenBrackets()) {
-                it.remove();
+        } else {
+            // walking up from the innermost pair, so the pairs are found (inner first) without sorting
+            for (BracketsPair pair = cont.getInnermostPairSurrounding(caretOffset); pair != null && listOfPairs.size() < count; pair = cont.getParent(pair)) {
+                if (isSurroundingPairIncluded(pair, includedPairs)) {
+                    listOfPairs.add(pair);
+                }
             }
         }
 
-        listOfPairs = sortPairs(listOfPairs);
-        listOfPairs = listOfPairs.subList(0, Math.min(_conf.getPairConfiguration().getSurroundingPairsCount(), listOfPairs.size()));
-
         // do nothing if _surroundingPairsToPaint is equal to listOfPairs
         if (areEqualPairs(listOfPairs, _surroundingPairsToPaint)) {
             return false;
@@ -731,21 +983,101 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
         return true;
     }
 
-    private boolean updateSingleBrackets() {
+    private boolean isSurroundingPairIncluded(final BracketsPair pair, final String includedPairs) {
+        return !pair.hasDeletedPosition() && includedPairs.indexOf(pair.getOpeningBracket().getChar()) != -1
+                && includedPairs.indexOf(pair.getClosingBracket().getChar()) != -1
+                && pair.getDistanceBetweenBrackets() - 1 >= _conf.getPairConfiguration().getMinDistanceBetweenBrackets();
+    }
+
+    /**
+     * Paints the single brackets of the paint region and annotates all the single brackets of the
+     * container, in place of the ones painted (and annotated) now
+     */
+    private void updateSingleBrackets() {
+        paintSingleBrackets();
+
+        final List<Annotation> removedAnnotations = new ArrayList<>(_annotationMap.values());
+        _annotationMap.clear();
+        annotateSingleBrackets(isAnnotating() ? _processingThread.getBracketContainer().getSingleBrackets() : List.of(), removedAnnotations);
+    }
+
+    /**
+     * Paints the single brackets of the paint region, in place of the ones painted now
+     */
+    private void paintSingleBrackets() {
         final BracketeerProcessingContainer cont = _processingThread.getBracketContainer();
-        final List<SingleBracket> list = cont.getSingleBrackets();
+        synchronized (_singleBracketsToPaint) {
+            final IRegion region = _paintRegion;
+            final List<SingleBracket> list = region == null ? cont.getSingleBrackets() : cont.getSingleBrackets(region.getOffset(), region.getLength());
 
-        // do nothing if _surroundingPairsToPaint is equal to listOfPairs
-        if (areEqualSingle(list, _singleBracketsToPaint)) {
-            return false;
+            // only the brackets which were painted and no longer are (and the other way around) are redrawn
+            final Set<Position> positions = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (final SingleBracket bracket : list) {
+                positions.add(bracket.getPositionRaw());
+            }
+            final Set<Position> paintedPositions = Collections.newSetFromMap(new IdentityHashMap<>());
+            final List<PaintableBracket> unpainted = new ArrayList<>();
+            for (final PaintableBracket paintable : _singleBracketsToPaint) {
+                paintedPositions.add(paintable.getPosition());
+                if (!positions.contains(paintable.getPosition())) {
+                    unpainted.add(paintable);
+                }
+            }
+            damage(unpainted);
+
+            _singleBracketsToPaint.clear();
+            addPaintableObjectsSingles(list);
+
+            final List<PaintableBracket> painted = new ArrayList<>();
+            for (final PaintableBracket paintable : _singleBracketsToPaint) {
+                if (!paintedPositions.contains(paintable.getPosition())) {
+                    painted.add(paintable);
+                }
+            }
+            damage(painted);
+        }
+    }
+
+    /**
+     * Stops painting (and annotating) the removed single brackets, and starts painting the added ones
+     */
+    private void updateSingleBrackets(final List<SingleBracket> added, final List<SingleBracket> removed) {
+        final Set<Position> removedPositions = Collections.newSetFromMap(new IdentityHashMap<>());
+        final List<Annotation> removedAnnotations = new ArrayList<>();
+        for (final SingleBracket bracket : removed) {
+            removedPositions.add(bracket.getPositionRaw());
+            final Annotation annotation = _annotationMap.remove(bracket.getPositionRaw());
+            if (annotation != null) {
+                removedAnnotations.add(annotation);
+            }
         }
 
-        clearSingleBracketsToPaint();
         synchronized (_singleBracketsToPaint) {
-            addPaintableObjectsSingles(list, _singleBracketsToPaint);
+            final List<PaintableBracket> unpainted = new ArrayList<>();
+            for (final PaintableBracket paintable : _singleBracketsToPaint) {
+                if (removedPositions.contains(paintable.getPosition())) {
+                    unpainted.add(paintable);
+                }
+            }
+            damage(unpainted);
+            _singleBracketsToPaint.removeIf(paintable -> removedPositions.contains(paintable.getPosition()));
+
+            final IRegion region = _paintRegion;
+            final List<SingleBracket> toPaint = new ArrayList<>();
+            for (final SingleBracket bracket : added) {
+                if (region == null || bracket.getPositionRaw().overlapsWith(region.getOffset(), region.getLength())) {
+                    toPaint.add(bracket);
+                }
+            }
+            final int paintedCount = _singleBracketsToPaint.size();
+            addPaintableObjectsSingles(toPaint);
+            damage(_singleBracketsToPaint.subList(paintedCount, _singleBracketsToPaint.size()));
         }
+        annotateSingleBrackets(isAnnotating() ? added : List.of(), removedAnnotations);
+    }
 
-        return true;
+    private boolean isAnnotating() {
+        return _conf.getSingleBracketConfiguration().getAnnotate() && !_degraded && _resource != null;
     }
 
     private boolean updateHints() {
@@ -755,7 +1087,8 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
         final HintConfiguration conf = _conf.getHintConfiguration();
         final IDocument doc = _doc;
 
-        for (final Hint hint : cont.getHints()) {
+        final IRegion region = _paintRegion;
+        for (final Hint hint : region == null ? cont.getHints() : cont.getHints(region.getOffset(), region.getLength())) {
             final String type = hint.getType();
             if (!_conf.getHintConfiguration().isShowInEditor(type)) {
                 continue;
@@ -783,6 +1116,20 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
             return false;
         }
 
+        // only the hints which changed are redrawn
+        final Map<Position, PaintableHint> painted = new IdentityHashMap<>();
+        for (final PaintableHint pHint : _hintsToPaint) {
+            painted.put(pHint.getPosition(), pHint);
+        }
+        for (final PaintableHint pHint : hintsToPaint) {
+            final PaintableHint old = painted.remove(pHint.getPosition());
+            if (!pHint.equals(old)) {
+                damage(old);
+                damage(pHint);
+            }
+        }
+        damage(painted.values());
+
         synchronized (_hintsToPaint) {
             _hintsToPaint = hintsToPaint;
         }
@@ -796,7 +1143,7 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
         for (final BracketsPair pair : listOfPairs) {
             int i = 0;
             while (i < ret.size()) {
-                if (ret.get(i).getOpeningBracket().getPositionRaw().offset < pair.getOpeningBracket().getPositionRaw().offset) {
+                if (ret.get(i).getOpeningBracket().getPositionRaw().getOffset() < pair.getOpeningBracket().getPositionRaw().getOffset()) {
                     break;
                 }
                 i++;
@@ -905,9 +1252,6 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
             addPaintableObjectsPairs(listOfPairs, 0, 1, _hoveredPairsToPaint);
         }
 
-        // TODO: optimize? (redraw only the needed sections)
-        _textWidget.redraw();
-
         // drawHighlights();
         return true;
     }
@@ -927,18 +1271,13 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
                     conf.formatTextHovered(type, hint.getTxt()));
         }
 
-        boolean redraw = false;
         if (_hoveredHintToPaint == null && hintToPaint != null || _hoveredHintToPaint != null && !_hoveredHintToPaint.equals(hintToPaint)) {
-            redraw = true;
+            damage(_hoveredHintToPaint);
+            damage(hintToPaint);
         }
 
         _hoveredHintToPaint = hintToPaint;
 
-        if (redraw) {
-            // TODO: optimize? (redraw only the needed sections)
-            _textWidget.redraw();
-        }
-
         return hint != null;
     }
 
@@ -965,29 +1304,14 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
         return true;
     }
 
-    private boolean areEqualSingle(final List<SingleBracket> list, final List<PaintableBracket> singlesToPaint) {
-        if (list.size() != singlesToPaint.size()) {
-            return false;
-        }
-
-        for (final SingleBracket bracket : list) {
-            boolean found = false;
-            for (final PaintableObject paintableObject : singlesToPaint) {
-                if (paintableObject.getPosition().equals(bracket.getPositionRaw())) {
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
-                return false;
-            }
-        }
-
-        return true;
-    }
-
     private void addPaintableObjectsPairs(final List<BracketsPair> listOfPairs, int colorCode, final int colorCodeStep,
             final List<PaintableBracket> paintableObjectsList) {
+        // the surrounding pairs aren't painted while there are hovered ones
+        if (paintableObjectsList == _hoveredPairsToPaint && _hoveredPairsToPaint.isEmpty()) {
+            damageSurroundingPairs();
+        }
+
+        final int paintedCount = paintableObjectsList.size();
         for (final BracketsPair bracketsPair : listOfPairs) {
             for (final SingleBracket bracket : bracketsPair.getBrackets()) {
                 final Position pos = bracket.getPositionRaw();
@@ -998,40 +1322,50 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
             }
             colorCode += colorCodeStep;
         }
+        damage(paintableObjectsList.subList(paintedCount, paintableObjectsList.size()));
     }
 
-    private void addPaintableObjectsSingles(final List<SingleBracket> listOfSingles, final List<PaintableBracket> paintableObjectsList) {
-        final Map<Annotation, Position> newMap = new HashMap<>();
+    /**
+     * Paints the single brackets (the caller should hold the lock of _singleBracketsToPaint)
+     */
+    private void addPaintableObjectsSingles(final List<SingleBracket> listOfSingles) {
         for (final SingleBracket bracket : listOfSingles) {
             final Position pos = bracket.getPositionRaw();
             final RGB fg = _conf.getSingleBracketConfiguration().getColor(true);
             final RGB bg = _conf.getSingleBracketConfiguration().getColor(false);
             final String highlightType = _conf.getSingleBracketConfiguration().getHighlightType();
-            paintableObjectsList.add(new PaintableBracket(pos, fg, bg, highlightType));
+            _singleBracketsToPaint.add(new PaintableBracket(pos, fg, bg, highlightType));
+        }
+    }
 
-            if (_conf.getSingleBracketConfiguration().getAnnotate() && _resource != null && _annotationMap != null) {
-                try {
-                    final IMarker marker = _resource.createMarker("me.glindholm.plugin.bracketeer2.unmatchedBracket.marker"); //$NON-NLS-1$
+    /**
+     * Annotates the single brackets, and removes the given annotations
+     */
+    private void annotateSingleBrackets(final List<SingleBracket> listOfSingles, final List<Annotation> removedAnnotations) {
+        final Map<Annotation, Position> newMap = new HashMap<>();
+        for (final SingleBracket bracket : listOfSingles) {
+            final Position pos = bracket.getPositionRaw();
+            try {
+                final IMarker marker = _resource.createMarker("me.glindholm.plugin.bracketeer2.unmatchedBracket.marker"); //$NON-NLS-1$
 
-                    final SimpleMarkerAnnotation ma = new SimpleMarkerAnnotation("me.glindholm.plugin.bracketeer2.unmatchedBracket.annotation", //$NON-NLS-1$
-                            marker);
+                final SimpleMarkerAnnotation ma = new SimpleMarkerAnnotation("me.glindholm.plugin.bracketeer2.unmatchedBracket.annotation", //$NON-NLS-1$
+                        marker);
 
-                    final Position newPos = new Position(pos.getOffset());
-                    newMap.put(ma, newPos);
-                } catch (final CoreException e) {
-                    Activator.log(e);
-                }
+                final Position newPos = new Position(pos.getOffset());
+                newMap.put(ma, newPos);
+                _annotationMap.put(pos, ma);
+            } catch (final CoreException e) {
+                Activator.log(e);
             }
         }
 
-        final Set<Annotation> oldKeySet = _annotationMap.keySet();
-        if (!oldKeySet.isEmpty() || !newMap.isEmpty()) {
+        if (!removedAnnotations.isEmpty() || !newMap.isEmpty()) {
             _annotationModel.connect(_doc);
 
             if (_annotationModel instanceof IAnnotationModelExtension) {
-                ((IAnnotationModelExtension) _annotationModel).replaceAnnotations(oldKeySet.toArray(new Annotation[oldKeySet.size()]), newMap);
+                ((IAnnotationModelExtension) _annotationModel).replaceAnnotations(removedAnnotations.toArray(new Annotation[removedAnnotations.size()]), newMap);
             } else {
-                for (final Annotation annotation : oldKeySet) {
+                for (final Annotation annotation : removedAnnotations) {
                     _annotationModel.removeAnnotation(annotation);
                 }
                 for (final Entry<Annotation, Position> mapEntry : newMap.entrySet()) {
@@ -1039,7 +1373,6 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
                 }
             }
 
-            _annotationMap = newMap;
             _annotationModel.disconnect(_doc);
         }
     }
@@ -1055,16 +1388,26 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
 
     private boolean clearHoveredPairsToPaint() {
         synchronized (_hoveredPairsToPaint) {
-            if (!_hoveredPairsToPaint.isEmpty()) {
-                _hoveredPairsToPaint.clear();
-                return true;
+            if (_hoveredPairsToPaint.isEmpty()) {
+                return false;
             }
+            damage(_hoveredPairsToPaint);
+            _hoveredPairsToPaint.clear();
+        }
+        // the surrounding pairs are painted again
+        damageSurroundingPairs();
+        return true;
+    }
+
+    private void damageSurroundingPairs() {
+        synchronized (_surroundingPairsToPaint) {
+            damage(_surroundingPairsToPaint);
         }
-        return false;
     }
 
     private boolean clearHoveredHint() {
         final boolean ret = _hoveredHintToPaint != null;
+        damage(_hoveredHintToPaint);
         _hoveredHintToPaint = null;
         return ret;
     }
@@ -1072,6 +1415,7 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
     private boolean clearSurroundingPairsToPaint() {
         synchronized (_surroundingPairsToPaint) {
             if (!_surroundingPairsToPaint.isEmpty()) {
+                damage(_surroundingPairsToPaint);
                 _surroundingPairsToPaint.clear();
                 return true;
             }
@@ -1082,6 +1426,7 @@ implements CaretListener, Listener, PaintListener, IDisposable, IPainter, IProce
     private boolean clearSingleBracketsToPaint() {
         synchronized (_singleBracketsToPaint) {
             if (!_singleBracketsToPaint.isEmpty()) {
+                damage(_singleBracketsToPaint);
                 _singleBracketsToPaint.clear();
                 return true;
             }
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) Gil Barash - chookapp@yahoo.com
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Gil Barash - initial API and implementation
+ *******************************************************************************/
+package me.glindholm.plugin.bracketeer2.core;
+
+import java.util.List;
+
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.Region;
+
+import me.glindholm.plugin.bracketeer2.common.BracketsPair;
+import me.glindholm.plugin.bracketeer2.common.Hint;
+import me.glindholm.plugin.bracketeer2.common.SingleBracket;
+
+/**
+ * The objects which were added to (and removed from) a {@link BracketeerProcessingContainer} since it
+ * last notified its listeners.
+ *
+ * An object which only moved along with the text is not reported, its positions are kept current by
+ * the container. A bracket which moved away from its pair (or got another one) is reported as a
+ * removed pair and an added one.
+ */
+public class ContainerDelta {
+    private final List<BracketsPair> _addedPairs;
+    private final List<BracketsPair> _removedPairs;
+    private final List<SingleBracket> _addedSingles;
+    private final List<SingleBracket> _removedSingles;
+    private final List<Hint> _addedHints;
+    private final List<Hint> _removedHints;
+    private final IRegion _region;
+
+    public ContainerDelta(final List<BracketsPair> addedPairs, final List<BracketsPair> removedPairs, final List<SingleBracket> addedSingles,
+            final List<SingleBracket> removedSingles, final List<Hint> addedHints, final List<Hint> removedHints) {
+        _addedPairs = addedPairs;
+        _removedPairs = removedPairs;
+        _addedSingles = addedSingles;
+        _removedSingles = removedSingles;
+        _addedHints = addedHints;
+        _removedHints = removedHints;
+        _region = computeRegion();
+    }
+
+    public List<BracketsPair> getAddedPairs() {
+        return _addedPairs;
+    }
+
+    public List<BracketsPair> getRemovedPairs() {
+        return _removedPairs;
+    }
+
+    public List<SingleBracket> getAddedSingles() {
+        return _addedSingles;
+    }
+
+    public List<SingleBracket> getRemovedSingles() {
+        return _removedSingles;
+    }
+
+    public List<Hint> getAddedHints() {
+        return _addedHints;
+    }
+
+    public List<Hint> getRemovedHints() {
+        return _removedHints;
+    }
+
+    public boolean hasPairChanges() {
+        return !_addedPairs.isEmpty() || !_removedPairs.isEmpty();
+    }
+
+    public boolean hasSingleChanges() {
+        return !_addedSingles.isEmpty() || !_removedSingles.isEmpty();
+    }
+
+    public boolean hasHintChanges() {
+        return !_addedHints.isEmpty() || !_removedHints.isEmpty();
+    }
+
+    public boolean isEmpty() {
+        return _region == null;
+    }
+
+    /**
+     * @return the region of the document which holds the added objects, and held the removed ones (as
+     *         they were when they were removed), or null if nothing changed
+     */
+    public IRegion getRegion() {
+        return _region;
+    }
+
+    /**
+     * @return true if the region of the delta overlaps [offset, offset + length]
+     */
+    public boolean touches(final int offset, final int length) {
+        return _region != null && _region.getOffset() <= offset + length && offset <= _region.getOffset() + _region.getLength();
+    }
+
+    private IRegion computeRegion() {
+        int start = Integer.MAX_VALUE;
+        int end = Integer.MIN_VALUE;
+        for (final List<BracketsPair> pairs : List.of(_addedPairs, _removedPairs)) {
+            for (final BracketsPair pair : pairs) {
+                for (final SingleBracket br : pair.getBrackets()) {
+                    final Position pos = br.getPositionRaw();
+                    start = Math.min(start, pos.getOffset());
+                    end = Math.max(end, pos.getOffset() + pos.getLength());
+                }
+            }
+        }
+        for (final List<SingleBracket> singles : List.of(_addedSingles, _removedSingles)) {
+            for (final SingleBracket br : singles) {
+                final Position pos = br.getPositionRaw();
+                start = Math.min(start, pos.getOffset());
+                end = Math.max(end, pos.getOffset() + pos.getLength());
+            }
+        }
+        for (final List<Hint> hints : List.of(_addedHints, _removedHints)) {
+            for (final Hint hint : hints) {
+                for (final Position pos : List.of(hint.getOriginPositionRaw(), hint.getHintPositionRaw())) {
+                    start = Math.min(start, pos.getOffset());
+                    end = Math.max(end, pos.getOffset() + pos.getLength());
+                }
+            }
+        }
+
+        return start > end ? null : new Region(start, end - start);
+    }
+}
@@ -11,5 +11,10 @@
 package me.glindholm.plugin.bracketeer2.core;
 
 public interface IProcessingContainerListener {
-    void containerUpdated(boolean bracketsPairsTouched, boolean singleBracketsTouched, boolean hintsTouched);
+    /**
+     * Called (on the processing thread) when the processing published its results
+     *
+     * @param delta the objects which were added and removed since the last call (may be empty)
+     */
+    void containerUpdated(ContainerDelta delta);
 }
\ No newline at end of file
@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright (c) Gil Barash - chookapp@yahoo.com
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Gil Barash - initial API and implementation
+ *******************************************************************************/
+package me.glindholm.plugin.bracketeer2.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.core.runtime.Assert;
+import org.eclipse.jface.text.Position;
+
+/**
+ * An interval tree over objects which span a region of the document: the intervals are kept sorted
+ * by their start, and the sorted array is used as a balanced tree (the root is the middle of the
+ * array) where every node also knows the interval with the furthest end in its subtree.
+ *
+ * The intervals are read from the positions of the objects whenever the tree is queried, so the
+ * tree stays valid while the document changes: a change moves the positions without changing their
+ * order, so the sorting and the furthest ends still hold. A position which was deleted is skipped,
+ * and isn't relied on to prune the search. The tree is built once all the intervals were added, and
+ * is not modified after that (it is rebuilt when the objects change).
+ *
+ * Sorting needs the offsets of all the intervals at the same moment, so {@link #capture} reads them
+ * while the document can't change, and {@link #build} may then sort them without holding its lock.
+ */
+public class IntervalIndex<T> {
+    private Position[] _starts;
+    private Position[] _ends;
+    // whether an interval ends after the length of its end position, or at its offset
+    private boolean[] _endsAfter;
+    private int[] _order;
+    // the index of the interval with the furthest end in each node's subtree
+    private int[] _maxEnds;
+    // the offsets read by capture(), until the tree is built
+    private int[] _startOffsets;
+    private int[] _endOffsets;
+    private final List<T> _objects;
+    private boolean _built;
+
+    public IntervalIndex() {
+        _starts = new Position[16];
+        _ends = new Position[16];
+        _endsAfter = new boolean[16];
+        _objects = new ArrayList<>();
+        _built = false;
+    }
+
+    /**
+     * Adds the interval taken by a position of an object (an object may have several intervals)
+     */
+    public void add(final Position position, final T obj) {
+        add(position, position, true, obj);
+    }
+
+    /**
+     * Adds the interval [start, end) of an object, between the offsets of two positions
+     */
+    public void add(final Position start, final Position end, final T obj) {
+        add(start, end, false, obj);
+    }
+
+    private void add(final Position start, final Position end, final boolean endsAfter, final T obj) {
+        Assert.isTrue(!_built);
+        final int idx = _objects.size();
+        if (idx == _starts.length) {
+            _starts = Arrays.copyOf(_starts, idx * 2);
+            _ends = Arrays.copyOf(_ends, idx * 2);
+            _endsAfter = Arrays.copyOf(_endsAfter, idx * 2);
+        }
+        _starts[idx] = start;
+        _ends[idx] = end;
+        _endsAfter[idx] = endsAfter;
+        _objects.add(obj);
+    }
+
+    /**
+     * Reads the offsets of the intervals, which the tree is sorted by. The document must not change
+     * while they are read (its lock is held), so they are all in the same order as the positions.
+     */
+    public void capture() {
+        Assert.isTrue(!_built);
+        final int size = _objects.size();
+        _startOffsets = new int[size];
+        _endOffsets = new int[size];
+        for (int i = 0; i < size; i++) {
+            _startOffsets[i] = _starts[i].getOffset();
+            _endOffsets[i] = getEnd(i);
+        }
+    }
+
+    /**
+     * Builds the tree from the offsets read by {@link #capture} (they are read now if they weren't).
+     * The positions may have moved since, as that doesn't change their order.
+     */
+    public void build() {
+        if (_startOffsets == null) {
+            capture();
+        }
+        final int size = _objects.size();
+        final int[] startOffsets = _startOffsets;
+        final Integer[] sorted = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            sorted[i] = i;
+        }
+        Arrays.sort(sorted, (a, b) -> Integer.compare(startOffsets[a], startOffsets[b]));
+
+        final Position[] starts = new Position[size];
+        final Position[] ends = new Position[size];
+        final boolean[] endsAfter = new boolean[size];
+        final int[] endOffsets = new int[size];
+        _order = new int[size];
+        for (int i = 0; i < size; i++) {
+            starts[i] = _starts[sorted[i]];
+            ends[i] = _ends[sorted[i]];
+            endsAfter[i] = _endsAfter[sorted[i]];
+            endOffsets[i] = _endOffsets[sorted[i]];
+            _order[i] = sorted[i];
+        }
+        _starts = starts;
+        _ends = ends;
+        _endsAfter = endsAfter;
+
+        _maxEnds = new int[size];
+        computeMaxEnds(0, size - 1, endOffsets);
+        _startOffsets = null;
+        _endOffsets = null;
+        _built = true;
+    }
+
+    /**
+     * @return the objects with an interval which overlaps [start, end) (or which holds start, if the
+     *         region is empty), in the order they were added. An object with several such intervals
+     *         is reported once for each of them.
+     */
+    public List<T> find(final int start, final int end) {
+        Assert.isTrue(_built);
+        final List<Integer> found = new ArrayList<>();
+        find(0, _starts.length - 1, start, Math.max(end, start + 1), found);
+        found.sort(null);
+
+        final List<T> ret = new ArrayList<>(found.size());
+        for (final int idx : found) {
+            ret.add(_objects.get(idx));
+        }
+        return ret;
+    }
+
+    private boolean isDeleted(final int idx) {
+        return isDeleted(_starts[idx]) || isDeleted(_ends[idx]);
+    }
+
+    private static boolean isDeleted(final Position position) {
+        return position.isDeleted || position.length == 0;
+    }
+
+    private int getEnd(final int idx) {
+        final Position end = _ends[idx];
+        return _endsAfter[idx] ? end.getOffset() + end.getLength() : end.getOffset();
+    }
+
+    /**
+     * @return the index of the interval with the furthest end in the subtree, or -1 if it is empty
+     */
+    private int computeMaxEnds(final int low, final int high, final int[] endOffsets) {
+        if (low > high) {
+            return -1;
+        }
+        final int mid = (low + high) >>> 1;
+        final int left = computeMaxEnds(low, mid - 1, endOffsets);
+        final int right = computeMaxEnds(mid + 1, high, endOffsets);
+        int max = mid;
+        if (left != -1 && endOffsets[left] > endOffsets[max]) {
+            max = left;
+        }
+        if (right != -1 && endOffsets[right] > endOffsets[max]) {
+            max = right;
+        }
+        _maxEnds[mid] = max;
+        return max;
+    }
+
+    private void find(final int low, final int high, final int start, final int end, final List<Integer> found) {
+        if (low > high) {
+            return;
+        }
+        final int mid = (low + high) >>> 1;
+        final int max = _maxEnds[mid];
+        if (!isDeleted(max) && getEnd(max) <= start) {
+            // nothing in this subtree reaches the region
+            return;
+        }
+
+        find(low, mid - 1, start, end, found);
+        if (isDeleted(mid)) {
+            find(mid + 1, high, start, end, found);
+        } else if (_starts[mid].getOffset() < end) {
+            if (getEnd(mid) > start) {
+                found.add(_order[mid]);
+            }
+            find(mid + 1, high, start, end, found);
+        }
+    }
+}
@@ -8,6 +8,7 @@ public class Messages extends NLS {
     public static String BracketsHighlighter_ErrBracketNotFound;
     public static String BracketsHighlighter_ErrHintNotFound;
     public static String BracketsHighlighter_ErrPairNotFound;
+    public static String BracketsHighlighter_Degraded;
     public static String BracketsHighlighter_ErrUnexpectedEvent;
     public static String BracketsHighlighter_MatchNotHighlighetd;
     public static String BracketsHighlighter_UnableToGetEditor;
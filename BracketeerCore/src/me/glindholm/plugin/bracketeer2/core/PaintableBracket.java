@@ -77,6 +77,21 @@ public class PaintableBracket extends PaintableObject {
 
     }
 
+    @Override
+    public Rectangle getWidgetRect(final GC gc, final StyledText st, final IDocument doc, final IRegion widgetRange) {
+        if (_position.isDeleted || widgetRange == null) {
+            return null;
+        }
+
+        try {
+            final Point p = st.getLocationAtOffset(widgetRange.getOffset());
+            final Point metrics = gc.textExtent(doc.get(_position.getOffset(), 1));
+            return new Rectangle(p.x, p.y, metrics.x, metrics.y);
+        } catch (final BadLocationException e) {
+            return null;
+        }
+    }
+
     public PaintableBracket clone(final Position newPos) {
         final PaintableBracket ret = new PaintableBracket(newPos, _foreground, _background, _highlightType);
         ret._outlineColor = _outlineColor;
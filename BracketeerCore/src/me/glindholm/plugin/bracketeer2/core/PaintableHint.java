@@ -104,6 +104,7 @@ public class PaintableHint extends PaintableObject {
         return true;
     }
 
+    @Override
     public Rectangle getWidgetRect(final GC gc, final StyledText st, final IDocument doc, final IRegion widgetRange) {
         try {
             if ((widgetRange == null) || !isOkToShow(doc)) {
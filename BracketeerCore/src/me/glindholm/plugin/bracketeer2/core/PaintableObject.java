@@ -102,4 +102,9 @@ public abstract class PaintableObject {
 
     protected abstract void innerPaint(GC gc, StyledText st, IDocument doc, IRegion widgetRange, Rectangle rect);
 
+    /**
+     * @return the part of the widget this object is painted on, or null if it isn't painted
+     */
+    public abstract Rectangle getWidgetRect(GC gc, StyledText st, IDocument doc, IRegion widgetRange);
+
 }
@@ -16,9 +16,14 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.ITextViewer;
+import org.eclipse.swt.events.ShellAdapter;
+import org.eclipse.swt.events.ShellEvent;
+import org.eclipse.swt.events.ShellListener;
+import org.eclipse.swt.widgets.Shell;
 import org.eclipse.ui.IEditorPart;
 import org.eclipse.ui.IEditorReference;
 import org.eclipse.ui.IPartListener2;
@@ -44,6 +49,27 @@ public class PartListener implements IWindowListener, IPartListener2 {
     private final HashMap<IWorkbenchPart, BracketsHighlighter> _activeMap;
     private final ProcessorsRegistry _processorsRegistry;
     private final List<IActiveProcessorListener> m_listeners;
+    // the editors of a minimized window are suspended until it's restored
+    private final ShellListener _shellListener = new ShellAdapter() {
+        @Override
+        public void shellIconified(final ShellEvent e) {
+            final IWorkbenchWindow window = getWindow((Shell) e.widget);
+            if (window == null) {
+                return;
+            }
+            for (final BracketsHighlighter bracketsHighlighter : getHighlighters(window).values()) {
+                bracketsHighlighter.setProcessingSuspended(true);
+            }
+        }
+
+        @Override
+        public void shellDeiconified(final ShellEvent e) {
+            final IWorkbenchWindow window = getWindow((Shell) e.widget);
+            if (window != null) {
+                resumeVisibleEditors(window);
+            }
+        }
+    };
 
     PartListener() {
         _activeMap = new HashMap<>();
@@ -94,6 +120,7 @@ public class PartListener implements IWindowListener, IPartListener2 {
 
     private void register(final IWorkbenchWindow wnd) {
         wnd.getPartService().addPartListener(this);
+        wnd.getShell().addShellListener(_shellListener);
         fWindows.add(wnd);
         final IWorkbenchPage[] pages = wnd.getPages();
         for (final IWorkbenchPage page : pages) {
@@ -116,6 +143,10 @@ public class PartListener implements IWindowListener, IPartListener2 {
      */
     private void unregister(final IWorkbenchWindow wnd) {
         wnd.getPartService().removePartListener(this);
+        final Shell shell = wnd.getShell();
+        if (shell != null && !shell.isDisposed()) {
+            shell.removeShellListener(_shellListener);
+        }
         fWindows.remove(wnd);
     }
 
@@ -123,10 +154,13 @@ public class PartListener implements IWindowListener, IPartListener2 {
 
     @Override
     public void windowActivated(final IWorkbenchWindow window) {
+        resumeVisibleEditors(window);
     }
 
     @Override
     public void windowDeactivated(final IWorkbenchWindow window) {
+        // a window is also deactivated by its own dialogs (Find/Replace edits its editors while it's
+        // open), so its editors are suspended only when it's minimized (see _shellListener)
     }
 
     @Override
@@ -145,6 +179,7 @@ public class PartListener implements IWindowListener, IPartListener2 {
     public void partActivated(final IWorkbenchPartReference partRef) {
         created(partRef);
         activated(partRef);
+        setPriority(partRef, ProcessingScheduler.PRIORITY_ACTIVE);
     }
 
     @Override
@@ -159,6 +194,7 @@ public class PartListener implements IWindowListener, IPartListener2 {
     @Override
     public void partDeactivated(final IWorkbenchPartReference partRef) {
         deactivated(partRef);
+        setPriority(partRef, ProcessingScheduler.PRIORITY_VISIBLE);
     }
 
     @Override
@@ -168,10 +204,14 @@ public class PartListener implements IWindowListener, IPartListener2 {
 
     @Override
     public void partHidden(final IWorkbenchPartReference partRef) {
+        setPriority(partRef, ProcessingScheduler.PRIORITY_BACKGROUND);
+        setSuspended(partRef, true);
     }
 
     @Override
     public void partVisible(final IWorkbenchPartReference partRef) {
+        setPriority(partRef, getPriority(partRef.getPart(false)));
+        setSuspended(partRef, isSuspended(partRef.getPart(false)));
     }
 
     @Override
@@ -231,6 +271,8 @@ public class PartListener implements IWindowListener, IPartListener2 {
             return;
         }
 
+        bracketsHighlighter.showProcessingState();
+
         final String name = bracketsHighlighter.getConfiguration().getName();
 
         if (Activator.DEBUG) {
@@ -247,6 +289,97 @@ public class PartListener implements IWindowListener, IPartListener2 {
         }
     }
 
+    private void setPriority(final IWorkbenchPartReference partRef, final int priority) {
+        final IWorkbenchPart part = partRef.getPart(false);
+        if (part == null) {
+            return;
+        }
+
+        BracketsHighlighter bracketsHighlighter;
+        synchronized (_activeMap) {
+            bracketsHighlighter = _activeMap.get(part);
+        }
+        if (bracketsHighlighter != null) {
+            bracketsHighlighter.setProcessingPriority(priority);
+        }
+    }
+
+    private void setSuspended(final IWorkbenchPartReference partRef, final boolean suspended) {
+        final IWorkbenchPart part = partRef.getPart(false);
+        if (part == null) {
+            return;
+        }
+
+        BracketsHighlighter bracketsHighlighter;
+        synchronized (_activeMap) {
+            bracketsHighlighter = _activeMap.get(part);
+        }
+        if (bracketsHighlighter != null) {
+            bracketsHighlighter.setProcessingSuspended(suspended);
+        }
+    }
+
+    private void resumeVisibleEditors(final IWorkbenchWindow window) {
+        for (final Map.Entry<IWorkbenchPart, BracketsHighlighter> entry : getHighlighters(window).entrySet()) {
+            final IWorkbenchPart part = entry.getKey();
+            entry.getValue().setProcessingSuspended(!part.getSite().getPage().isPartVisible(part));
+        }
+    }
+
+    private IWorkbenchWindow getWindow(final Shell shell) {
+        for (final IWorkbenchWindow window : fWindows) {
+            if (window.getShell() == shell) {
+                return window;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the highlighters of the editors in the window
+     */
+    private Map<IWorkbenchPart, BracketsHighlighter> getHighlighters(final IWorkbenchWindow window) {
+        final Map<IWorkbenchPart, BracketsHighlighter> ret = new HashMap<>();
+        synchronized (_activeMap) {
+            for (final Map.Entry<IWorkbenchPart, BracketsHighlighter> entry : _activeMap.entrySet()) {
+                if (entry.getKey().getSite().getWorkbenchWindow() == window) {
+                    ret.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return true if the part is hidden, or if it is in a window which is minimized
+     */
+    private static boolean isSuspended(final IWorkbenchPart part) {
+        if (part == null) {
+            return true;
+        }
+
+        if (!part.getSite().getPage().isPartVisible(part)) {
+            return true;
+        }
+        final Shell shell = part.getSite().getWorkbenchWindow().getShell();
+        return shell == null || shell.getMinimized();
+    }
+
+    private static int getPriority(final IWorkbenchPart part) {
+        if (part == null) {
+            return ProcessingScheduler.PRIORITY_BACKGROUND;
+        }
+
+        final IWorkbenchPage page = part.getSite().getPage();
+        if (page.getActivePart() == part) {
+            return ProcessingScheduler.PRIORITY_ACTIVE;
+        }
+        if (page.isPartVisible(part)) {
+            return ProcessingScheduler.PRIORITY_VISIBLE;
+        }
+        return ProcessingScheduler.PRIORITY_BACKGROUND;
+    }
+
     private void hook(final IEditorPart part, final ITextViewer textViewer) {
         if (textViewer == null) {
             return;
@@ -285,7 +418,8 @@ public class PartListener implements IWindowListener, IPartListener2 {
         }
 
         final BracketsHighlighter bracketsHighlighter = new BracketsHighlighter();
-        bracketsHighlighter.Init(processor.getProcessor(), part, doc, textViewer, processor.getConfiguration());
+        bracketsHighlighter.Init(processor.getProcessor(), part, doc, textViewer, processor.getConfiguration(), getPriority(part));
+        bracketsHighlighter.setProcessingSuspended(isSuspended(part));
         synchronized (_activeMap) {
             _activeMap.put(part, bracketsHighlighter);
 
@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) Gil Barash - chookapp@yahoo.com
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Gil Barash - initial API and implementation
+ *******************************************************************************/
+package me.glindholm.plugin.bracketeer2.core;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import me.glindholm.plugin.bracketeer2.Activator;
+
+/**
+ * Runs the processing of all the documents on a small, bounded, pool of worker threads.
+ *
+ * Documents are processed by priority: the active editor first, then the visible editors and then
+ * the rest. A document is queued at most once; scheduling it again while it is waiting doesn't add
+ * more work, as the queued processing will handle the latest state of the document anyway.
+ *
+ * The scheduler also owns a single timer thread, used to delay the processing until the user stops
+ * typing.
+ */
+public class ProcessingScheduler {
+    public static final int PRIORITY_ACTIVE = 0;
+    public static final int PRIORITY_VISIBLE = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int MAX_WORKERS = 4;
+
+    private static ProcessingScheduler sInstance = new ProcessingScheduler();
+
+    private static class QueueEntry implements Comparable<QueueEntry> {
+        private final ProcessingThread _task;
+        private final int _priority;
+        private final long _seq;
+
+        public QueueEntry(final ProcessingThread task, final int priority, final long seq) {
+            _task = task;
+            _priority = priority;
+            _seq = seq;
+        }
+
+        @Override
+        public int compareTo(final QueueEntry other) {
+            if (_priority != other._priority) {
+                return Integer.compare(_priority, other._priority);
+            }
+            return Long.compare(_seq, other._seq);
+        }
+    }
+
+    private class Worker extends Thread {
+        private boolean _stopped;
+
+        public Worker() {
+            super("Bracketeer processing"); //$NON-NLS-1$
+            setDaemon(true);
+            setPriority(Thread.NORM_PRIORITY - 1);
+            _stopped = false;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                ProcessingThread task;
+                synchronized (_lock) {
+                    while (!_stopped && _queue.isEmpty()) {
+                        try {
+                            _lock.wait();
+                        } catch (final InterruptedException e) {
+                            _stopped = true;
+                        }
+                    }
+                    if (_stopped) {
+                        return;
+                    }
+                    final QueueEntry entry = _queue.poll();
+                    _queued.remove(entry._task);
+                    task = entry._task;
+                }
+
+                try {
+                    task.run();
+                } catch (final Exception e) {
+                    Activator.log(e);
+                }
+            }
+        }
+    }
+
+    private final Object _lock = new Object();
+    private final PriorityQueue<QueueEntry> _queue;
+    private final Map<ProcessingThread, QueueEntry> _queued;
+    private final List<Worker> _workers;
+    private ScheduledThreadPoolExecutor _timer;
+    private long _nextSeq;
+
+    ProcessingScheduler() {
+        _queue = new PriorityQueue<>();
+        _queued = new HashMap<>();
+        _workers = new LinkedList<>();
+        _timer = null;
+        _nextSeq = 0;
+    }
+
+    public static ProcessingScheduler getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Queues the task, unless it is already waiting in the queue
+     */
+    public void schedule(final ProcessingThread task) {
+        synchronized (_lock) {
+            if (_queued.containsKey(task)) {
+                return;
+            }
+
+            final QueueEntry entry = new QueueEntry(task, task.getPriority(), _nextSeq++);
+            _queue.add(entry);
+            _queued.put(task, entry);
+
+            if (_workers.size() < getMaxWorkers()) {
+                final Worker worker = new Worker();
+                _workers.add(worker);
+                worker.start();
+            }
+            _lock.notify();
+        }
+    }
+
+    /**
+     * Runs the action on the timer thread after the delay. The action should be short (usually it
+     * just schedules a task).
+     *
+     * @param delay the delay in milliseconds
+     */
+    public void runLater(final Runnable action, final long delay) {
+        synchronized (_lock) {
+            if (_timer == null) {
+                _timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+                    final Thread thread = new Thread(runnable, "Bracketeer timer"); //$NON-NLS-1$
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            _timer.schedule(() -> {
+                try {
+                    action.run();
+                } catch (final Exception e) {
+                    Activator.log(e);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Re-orders the queue after the priority of a task has changed
+     */
+    public void priorityChanged(final ProcessingThread task) {
+        synchronized (_lock) {
+            final QueueEntry entry = _queued.get(task);
+            if (entry == null || entry._priority == task.getPriority()) {
+                return;
+            }
+
+            _queue.remove(entry);
+            final QueueEntry newEntry = new QueueEntry(task, task.getPriority(), entry._seq);
+            _queue.add(newEntry);
+            _queued.put(task, newEntry);
+        }
+    }
+
+    /**
+     * Removes the task from the queue (a task which is already running is not interrupted)
+     *
+     * @return true if the task was waiting in the queue
+     */
+    public boolean cancel(final ProcessingThread task) {
+        synchronized (_lock) {
+            final QueueEntry entry = _queued.remove(task);
+            if (entry == null) {
+                return false;
+            }
+            _queue.remove(entry);
+            return true;
+        }
+    }
+
+    /**
+     * Drops all the queued tasks and stops the workers (once they finish their current task)
+     */
+    public void shutdown() {
+        synchronized (_lock) {
+            if (_timer != null) {
+                _timer.shutdownNow();
+                _timer = null;
+            }
+            _queue.clear();
+            _queued.clear();
+            for (final Worker worker : _workers) {
+                worker._stopped = true;
+            }
+            _workers.clear();
+            _lock.notifyAll();
+        }
+    }
+
+    private static int getMaxWorkers() {
+        return Math.max(1, Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors() / 2));
+    }
+}
@@ -10,16 +10,44 @@
  *******************************************************************************/
 package me.glindholm.plugin.bracketeer2.core;
 
+import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.DocumentPartitioningChangedEvent;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.jface.text.IDocumentPartitioningListener;
+import org.eclipse.jface.text.IDocumentPartitioningListenerExtension2;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
 import org.eclipse.ui.services.IDisposable;
 
 import me.glindholm.plugin.bracketeer2.Activator;
 import me.glindholm.plugin.bracketeer2.extensionpoint.BracketeerProcessor;
 
-public class ProcessingThread implements Runnable, IDocumentListener, IDisposable {
-    private Thread _thread = null;
+public class ProcessingThread
+        implements Runnable, IDocumentListener, IDocumentPartitioningListener, IDocumentPartitioningListenerExtension2, IDisposable {
+    // the debounce delay (in ms) is adapted to the cost of a pass and to the typing rate
+    private static final long MIN_DELAY = 30;
+    private static final long MAX_DELAY = 1000;
+    private static final long MAX_TYPING_DELAY = 500;
+
+    // true from the time a change is noticed until the processing is done (waiting for the document
+    // to stop changing, queued or running), so there is never more than one pass in progress
+    private boolean _scheduled = false;
+    private long _lastChangeTime;
+    private long _typingInterval;
+    // guarded by _docChangedLock
+    private long _lastPassDuration;
+    private int _priority;
+    // while suspended (the editor isn't visible), the changes are only collected. They are processed
+    // once the editor is visible again.
+    private boolean _suspended;
+    // the large file policy: above these limits, only the cheap parts of the processing are done
+    private boolean _degradeLargeFiles;
+    private int _largeFileSize;
+    private long _slowPassTime;
+    private boolean _slowPassSeen;
+    private volatile boolean _degraded;
     private final IDocument _doc;
     private final BracketeerProcessor _processor;
     private final BracketeerProcessingContainer _bracketContainer;
@@ -31,19 +59,43 @@ public class ProcessingThread implements Runnable, IDocumentListener, IDisposabl
 //    private boolean _cancelProcessing;
 //    private Semaphore _processingCanceled = new Semaphore(0);
     private final Object _docChangedLock = new Object();
+    // (guarded by _docChangedLock, it's written by the document's thread and read by the debounce)
     private boolean _docIsChanging;
     private boolean _disposing;
 
-    public ProcessingThread(final IDocument doc, final BracketeerProcessor processor) {
+    // the region changed since the last successful pass (in the current document's coordinates)
+    private boolean _fullPassNeeded;
+    private int _dirtyStart;
+    private int _dirtyEnd;
+    private IRegion _partitioningChange;
+
+    // the pass which is running (the document changes made while it runs are recorded in it)
+    private volatile SnapshotProcessingContainer _pass;
+
+    public ProcessingThread(final IDocument doc, final BracketeerProcessor processor, final int priority) {
         _processor = processor;
+        _priority = priority;
+        _suspended = false;
+        _degradeLargeFiles = false;
+        _largeFileSize = Integer.MAX_VALUE;
+        _slowPassTime = Long.MAX_VALUE;
+        _slowPassSeen = false;
+        _degraded = false;
+        _lastChangeTime = 0;
+        _typingInterval = 0;
+        _lastPassDuration = 0;
         _documentChanged = false;
         _docIsChanging = false;
         _disposing = false;
+        _fullPassNeeded = true;
+        _dirtyStart = -1;
+        _dirtyEnd = -1;
         _doc = doc;
         _bracketContainer = new BracketeerProcessingContainer(_doc);
 //        _isProcessing = false;        
 
         _doc.addDocumentListener(this);
+        _doc.addDocumentPartitioningListener(this);
 
         // initial mapping...
         documentChanged(null);
@@ -52,42 +104,230 @@ public class ProcessingThread implements Runnable, IDocumentListener, IDisposabl
     @Override
     public void dispose() {
         _doc.removeDocumentListener(this);
+        _doc.removeDocumentPartitioningListener(this);
         _disposing = true;
+        ProcessingScheduler.getInstance().cancel(this);
+        _processor.cancel();
+    }
+
+    /**
+     * @param region the region of the document which is visible in the editor, or null if it shouldn't
+     *               be processed first
+     */
+    public void setVisibleRegion(final IRegion region) {
+        _processor.setVisibleRegion(region);
+    }
+
+    public int getPriority() {
+        return _priority;
+    }
+
+    /**
+     * @param priority one of the ProcessingScheduler.PRIORITY_* constants
+     */
+    public void setPriority(final int priority) {
+        if (_priority == priority) {
+            return;
+        }
+        _priority = priority;
+        ProcessingScheduler.getInstance().priorityChanged(this);
+    }
+
+    /**
+     * Sets the limits above which the document is processed in a degraded mode (see
+     * {@link BracketeerProcessor#setDegraded(boolean)})
+     *
+     * @param enabled      false if the document should always be fully processed
+     * @param size         the length of the document above which it is degraded
+     * @param slowPassTime the duration (in ms) of a pass above which the document is degraded
+     */
+    public void setLargeFilePolicy(final boolean enabled, final int size, final long slowPassTime) {
+        synchronized (_docChangedLock) {
+            if (_degradeLargeFiles == enabled && _largeFileSize == size && _slowPassTime == slowPassTime) {
+                return;
+            }
+            _degradeLargeFiles = enabled;
+            _largeFileSize = size;
+            _slowPassTime = slowPassTime;
+            _slowPassSeen = false;
+
+            if (isDegraded(_doc.getLength()) != _degraded) {
+                // the pass decides on the mode
+                _fullPassNeeded = true;
+                if (!_scheduled && !_disposing && !_suspended) {
+                    _scheduled = true;
+                    ProcessingScheduler.getInstance().schedule(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the document is processed in a degraded mode (it is too large)
+     */
+    public boolean isDegraded() {
+        return _degraded;
+    }
+
+    private boolean isDegraded(final int docLength) {
+        return _degradeLargeFiles && (docLength > _largeFileSize || _slowPassSeen);
+    }
+
+    /**
+     * Stops (or resumes) processing the document when it is changed. When resumed, the changes made
+     * while the processing was suspended are processed at once.
+     */
+    public void setSuspended(final boolean suspended) {
+        synchronized (_docChangedLock) {
+            if (_suspended == suspended) {
+                return;
+            }
+            _suspended = suspended;
+
+            if (suspended) {
+                // a pass which is waiting for the debounce or already running notices it on its own
+                if (_scheduled && ProcessingScheduler.getInstance().cancel(this)) {
+                    _scheduled = false;
+                }
+            } else if (!_scheduled && !_disposing && (_fullPassNeeded || _dirtyStart != -1)) {
+                _scheduled = true;
+                ProcessingScheduler.getInstance().schedule(this);
+            }
+        }
     }
 
     @Override
     public void run() {
-        while (!_disposing) {
-            while (_documentChanged || _docIsChanging || _bracketContainer.isUpdatingListeners()) {
-                _documentChanged = false;
-                try {
-                    Thread.sleep(250);
-                } catch (final InterruptedException e) {
-                    Activator.log(e);
+        synchronized (_docChangedLock) {
+            if (_disposing || _suspended) {
+                _scheduled = false;
+                return;
+            }
+            _documentChanged = false;
+        }
+
+        final long start = System.currentTimeMillis();
+        final IRegion dirtyRegion;
+        SnapshotProcessingContainer pass = null;
+        // the dirty region is taken along with the snapshot, so it is in the snapshot's offsets
+        synchronized (_bracketContainer.getDocumentLock()) {
+            synchronized (_docChangedLock) {
+                final boolean degraded = isDegraded(_doc.getLength());
+                if (degraded != _degraded) {
+                    // the parts which are (or were) left out may be anywhere in the document
+                    _fullPassNeeded = true;
+                    _degraded = degraded;
+                    _processor.setDegraded(degraded);
                 }
-            } // waiting for document to stop changing
+            }
+            dirtyRegion = takeDirtyRegion();
+            try {
+                pass = new SnapshotProcessingContainer(_doc, _bracketContainer, (dirtyStart, dirtyEnd) -> {
+                    synchronized (_docChangedLock) {
+                        mergeDirtyRegion(dirtyStart, dirtyEnd);
+                    }
+                });
+            } catch (final BadLocationException e) {
+                Activator.log(e);
+            }
+            _pass = pass;
+        }
+
+        boolean reRun = true;
+        if (pass != null) {
+            if (dirtyRegion == null) {
+                pass.markAllToBeDeleted();
+            }
 
-            _bracketContainer.markAllToBeDeleted();
-            boolean reRun = true;
             try {
-                reRun = !_processor.process(_bracketContainer);
+                reRun = !_processor.process(pass.getSnapshot(), pass, dirtyRegion) || !pass.isSnapshotComplete();
+                if (!reRun) {
+                    pass.apply();
+                }
             } catch (final Exception e) {
+                reRun = true;
                 Activator.log(e);
             }
+        }
 
+        boolean tooSlow = false;
+        if (!reRun) {
+            _pass = null;
+            final long duration = System.currentTimeMillis() - start;
             synchronized (_docChangedLock) {
-                if (reRun || _documentChanged) {
-                    _documentChanged = true;
-                    continue;
+                // read under the lock when the next pass is scheduled
+                _lastPassDuration = duration;
+                if (!_degraded && _degradeLargeFiles && _lastPassDuration > _slowPassTime) {
+                    // another pass is needed, in the degraded mode
+                    _slowPassSeen = true;
+                    _fullPassNeeded = true;
+                    tooSlow = true;
+                }
+            }
+            _bracketContainer.deleteAllMarked();
+            _bracketContainer.updateComplete();
+        } else if (pass != null && dirtyRegion != null && !pass.hasApplied()) {
+            // nothing was changed, so the next pass has to handle the same region (shifted through the
+            // changes made since)
+            synchronized (_bracketContainer.getDocumentLock()) {
+                _pass = null;
+                final IRegion region = pass.toDocumentRegion(dirtyRegion);
+                synchronized (_docChangedLock) {
+                    mergeDirtyRegion(region.getOffset(), region.getOffset() + region.getLength());
                 }
-                _thread = null;
-                break;
+            }
+        } else {
+            _pass = null;
+            synchronized (_docChangedLock) {
+                // we don't know which parts of the container were updated before the pass stopped
+                _fullPassNeeded = true;
+            }
+        }
+
+        synchronized (_docChangedLock) {
+            if ((reRun || tooSlow || _documentChanged) && !_disposing && !_suspended) {
+                startDebounce(getDebounceDelay());
+            } else {
+                _scheduled = false;
             }
         }
+    }
 
-        _bracketContainer.deleteAllMarked();
-        _bracketContainer.updateComplete();
+    /**
+     * Called when the debounce delay has passed. The processing is queued only if the document didn't
+     * change since (otherwise, the debounce starts over for the remaining time)
+     */
+    private void debounceElapsed() {
+        synchronized (_docChangedLock) {
+            if (_disposing || _suspended) {
+                _scheduled = false;
+                return;
+            }
 
+            final long remaining = _lastChangeTime + getDebounceDelay() - System.currentTimeMillis();
+            if (_docIsChanging || remaining > 0) {
+                startDebounce(Math.max(remaining, MIN_DELAY));
+                return;
+            }
+        }
+        ProcessingScheduler.getInstance().schedule(this);
+    }
+
+    private void startDebounce(final long delay) {
+        ProcessingScheduler.getInstance().runLater(this::debounceElapsed, delay);
+    }
+
+    /**
+     * A pass which runs while the user is typing has to be followed by another one, so the delay is
+     * long enough for the last pass to complete, and long enough to cover the pauses the user makes
+     * while typing
+     */
+    private long getDebounceDelay() {
+        long delay = MIN_DELAY + 2 * _lastPassDuration;
+        if (_typingInterval > 0) {
+            delay = Math.max(delay, Math.min(_typingInterval * 3 / 2, MAX_TYPING_DELAY));
+        }
+        return Math.min(delay, MAX_DELAY);
     }
 
 //    public void run()
@@ -136,22 +376,144 @@ public class ProcessingThread implements Runnable, IDocumentListener, IDisposabl
 
     @Override
     public void documentAboutToBeChanged(final DocumentEvent event) {
-        _docIsChanging = true;
+        final SnapshotProcessingContainer pass = _pass;
+        if (pass != null && !pass.documentAboutToBeChanged()) {
+            // the partitions the pass needs can't be copied anymore
+            _processor.cancel();
+        }
+        synchronized (_docChangedLock) {
+            _docIsChanging = true;
+        }
     }
 
     @Override
     public void documentChanged(final DocumentEvent event) {
-        // TODO: optimize - put the event in an events list so that the processor could parse only part of
-        // the file
-
-        _docIsChanging = false;
+        final SnapshotProcessingContainer pass = _pass;
+        if (pass != null && event != null) {
+            final String text = event.getText();
+            pass.documentChanged(event.getOffset(), event.getLength(), text == null ? 0 : text.length());
+        }
         synchronized (_docChangedLock) {
+            _docIsChanging = false;
+            if (event == null) {
+                _fullPassNeeded = true;
+            } else {
+                final String text = event.getText();
+                addDirtyRegion(event.getOffset(), event.getLength(), text == null ? 0 : text.length());
+                if (_partitioningChange != null) {
+                    mergeDirtyRegion(_partitioningChange.getOffset(), _partitioningChange.getOffset() + _partitioningChange.getLength());
+                    _partitioningChange = null;
+                }
+            }
             _documentChanged = true;
-            if (_thread == null) {
-                _thread = new Thread(this, "ProcessingThread"); //$NON-NLS-1$
-                _thread.start();
+
+            final long now = System.currentTimeMillis();
+            if (event != null) {
+                final long interval = now - _lastChangeTime;
+                if (interval < getDebounceDelay()) {
+                    _typingInterval = (_typingInterval * 3 + interval) / 4;
+                } else {
+                    // a pause (the processing could have run), so the user isn't typing that fast
+                    _typingInterval /= 2;
+                }
+            }
+            _lastChangeTime = now;
+
+            if (!_scheduled && !_disposing && !_suspended) {
+                _scheduled = true;
+                if (event == null) {
+                    ProcessingScheduler.getInstance().schedule(this);
+                } else {
+                    startDebounce(getDebounceDelay());
+                }
             }
         }
     }
 
+    @Override
+    public void documentPartitioningChanged(final IDocument document) {
+        // only called by documents which don't supply the changed region
+        synchronized (_docChangedLock) {
+            _fullPassNeeded = true;
+        }
+    }
+
+    @Override
+    public void documentPartitioningChanged(final DocumentPartitioningChangedEvent event) {
+        // The partitioning is updated before the document listeners are notified, so the changed region
+        // is kept until the document change itself is added (else it would be shifted by it)
+        final IRegion coverage = event.getCoverage();
+        if (coverage == null) {
+            return;
+        }
+        synchronized (_docChangedLock) {
+            if (!_docIsChanging) {
+                _fullPassNeeded = true;
+            } else if (_partitioningChange == null) {
+                _partitioningChange = coverage;
+            } else {
+                final int start = Math.min(_partitioningChange.getOffset(), coverage.getOffset());
+                final int end = Math.max(_partitioningChange.getOffset() + _partitioningChange.getLength(),
+                        coverage.getOffset() + coverage.getLength());
+                _partitioningChange = new Region(start, end - start);
+            }
+        }
+    }
+
+    /**
+     * Adds a replaced region to the dirty region, shifting the dirty region by the replacement
+     *
+     * @param offset         the offset of the replaced text
+     * @param removedLength  the length of the text which was removed
+     * @param insertedLength the length of the text which was inserted instead
+     */
+    private void addDirtyRegion(final int offset, final int removedLength, final int insertedLength) {
+        final int insertedEnd = offset + insertedLength;
+        if (_dirtyStart == -1) {
+            _dirtyStart = offset;
+            _dirtyEnd = insertedEnd;
+            return;
+        }
+
+        _dirtyStart = Math.min(shiftOffset(_dirtyStart, offset, removedLength, insertedLength), offset);
+        _dirtyEnd = Math.max(shiftOffset(_dirtyEnd, offset, removedLength, insertedLength), insertedEnd);
+    }
+
+    /**
+     * Adds a region (in the current document's coordinates) to the dirty region
+     */
+    private void mergeDirtyRegion(final int start, final int end) {
+        if (_dirtyStart == -1) {
+            _dirtyStart = start;
+            _dirtyEnd = end;
+            return;
+        }
+
+        _dirtyStart = Math.min(_dirtyStart, start);
+        _dirtyEnd = Math.max(_dirtyEnd, end);
+    }
+
+    private static int shiftOffset(final int pos, final int offset, final int removedLength, final int insertedLength) {
+        if (pos <= offset) {
+            return pos;
+        }
+        if (pos >= offset + removedLength) {
+            return pos + insertedLength - removedLength;
+        }
+        return offset + insertedLength;
+    }
+
+    /**
+     * @return the region changed since the last successful pass, or null if the whole document should
+     *         be processed
+     */
+    private IRegion takeDirtyRegion() {
+        synchronized (_docChangedLock) {
+            final IRegion ret = _fullPassNeeded || _dirtyStart == -1 ? null : new Region(_dirtyStart, _dirtyEnd - _dirtyStart);
+            _fullPassNeeded = false;
+            _dirtyStart = -1;
+            _dirtyEnd = -1;
+            return ret;
+        }
+    }
 }
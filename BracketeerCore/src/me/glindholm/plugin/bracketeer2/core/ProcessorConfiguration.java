@@ -30,6 +30,10 @@ import me.glindholm.plugin.bracketeer2.preferences.PreferencesConstants;
 public class ProcessorConfiguration implements IPropertyChangeListener {
     public class GeneralConfiguration {
         private int _hyperlinkModifiers;
+        private boolean _processVisibleFirst;
+        private boolean _degradeLargeFiles;
+        private int _largeFileSize;
+        private int _slowPassTime;
 
         public int getHyperlinkModifiers() {
             return _hyperlinkModifiers;
@@ -38,6 +42,44 @@ public class ProcessorConfiguration implements IPropertyChangeListener {
         public void setHyperlinkModifiers(final int modifiers) {
             _hyperlinkModifiers = modifiers;
         }
+
+        public boolean isProcessVisibleFirst() {
+            return _processVisibleFirst;
+        }
+
+        public void setProcessVisibleFirst(final boolean processVisibleFirst) {
+            _processVisibleFirst = processVisibleFirst;
+        }
+
+        public boolean isDegradeLargeFiles() {
+            return _degradeLargeFiles;
+        }
+
+        public void setDegradeLargeFiles(final boolean degradeLargeFiles) {
+            _degradeLargeFiles = degradeLargeFiles;
+        }
+
+        /**
+         * @return the size (in characters) above which a file is large
+         */
+        public int getLargeFileSize() {
+            return _largeFileSize;
+        }
+
+        public void setLargeFileSize(final int largeFileSize) {
+            _largeFileSize = largeFileSize;
+        }
+
+        /**
+         * @return the time (in ms) a pass may take before the file is considered large
+         */
+        public int getSlowPassTime() {
+            return _slowPassTime;
+        }
+
+        public void setSlowPassTime(final int slowPassTime) {
+            _slowPassTime = slowPassTime;
+        }
     }
 
     public class PairConfiguration {
@@ -370,6 +412,10 @@ public class ProcessorConfiguration implements IPropertyChangeListener {
 
     private void updateGeneralConf() {
         _generalConf.setHyperlinkModifiers(_prefStore.getInt(PreferencesConstants.General.HYPERLINK_MODIFIERS));
+        _generalConf.setProcessVisibleFirst(_prefStore.getBoolean(PreferencesConstants.General.PROCESS_VISIBLE_FIRST));
+        _generalConf.setDegradeLargeFiles(_prefStore.getBoolean(PreferencesConstants.General.DEGRADE_LARGE_FILES));
+        _generalConf.setLargeFileSize(_prefStore.getInt(PreferencesConstants.General.LARGE_FILE_SIZE) * 1024);
+        _generalConf.setSlowPassTime(_prefStore.getInt(PreferencesConstants.General.SLOW_PASS_TIME));
     }
 
     private void updateHintConf() {
@@ -0,0 +1,521 @@
+/*******************************************************************************
+ * Copyright (c) Gil Barash - chookapp@yahoo.com
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ *
+ * Contributors:
+ *    Gil Barash - initial API and implementation
+ *******************************************************************************/
+package me.glindholm.plugin.bracketeer2.core;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.Region;
+
+import me.glindholm.plugin.bracketeer2.common.BracketsPair;
+import me.glindholm.plugin.bracketeer2.common.DocumentSnapshot;
+import me.glindholm.plugin.bracketeer2.common.Hint;
+import me.glindholm.plugin.bracketeer2.common.IBracketeerProcessingContainer;
+import me.glindholm.plugin.bracketeer2.common.SingleBracket;
+
+/**
+ * The container a processing pass adds its results to, while it runs on a {@link DocumentSnapshot}.
+ *
+ * The results (in the snapshot's offsets) are kept until the pass publishes them. They are then
+ * shifted through the changes made to the document since the snapshot was taken, and applied to the
+ * document's container. Results which fall in text which was changed are dropped, the next pass
+ * processes this text anyway.
+ */
+public class SnapshotProcessingContainer implements IBracketeerProcessingContainer {
+    private interface IOperation {
+        void apply(BracketeerProcessingContainer container) throws BadLocationException;
+    }
+
+    /**
+     * Notified (while the document's lock is held) of a region of the document which has to be
+     * processed again, though it wasn't changed
+     */
+    public interface IDirtyRegionListener {
+        void regionDirty(int start, int end);
+    }
+
+    /**
+     * A region of the snapshot whose text was replaced, and the region of the document holding the
+     * text which replaced it (the text there was all inserted after the snapshot was taken)
+     */
+    private static class Change {
+        private final int _snapshotStart;
+        private final int _snapshotEnd;
+        private int _documentStart;
+        private int _documentEnd;
+
+        public Change(final int snapshotStart, final int snapshotEnd, final int documentStart, final int documentEnd) {
+            _snapshotStart = snapshotStart;
+            _snapshotEnd = snapshotEnd;
+            _documentStart = documentStart;
+            _documentEnd = documentEnd;
+        }
+
+        /**
+         * @return the amount of characters the text after the change was shifted by
+         */
+        public int getShift() {
+            return _documentEnd - _snapshotEnd;
+        }
+    }
+
+    // the copy of the document the snapshot is built from
+    private final DocumentSnapshot.Content _content;
+    private DocumentSnapshot _snapshot;
+    private final BracketeerProcessingContainer _container;
+    private final Object _docLock;
+    private final IDirtyRegionListener _dirtyRegionListener;
+
+    // the changes made to the document since the snapshot was taken, merged so they don't touch each
+    // other and sorted (guarded by _docLock)
+    private final List<Change> _changes;
+    // the results which weren't applied yet (added by the threads of the pass, guarded by itself)
+    private final List<IOperation> _operations;
+    private BadLocationException _applyError;
+    private boolean _applied;
+
+    /**
+     * Copies the document, the snapshot is built from the copy when it is first asked for (without
+     * the document's lock). The caller should hold the document's lock.
+     *
+     * @param dirtyRegionListener notified of the brackets whose pair was broken by a change made while
+     *                            the pass was running
+     */
+    public SnapshotProcessingContainer(final IDocument doc, final BracketeerProcessingContainer container,
+            final IDirtyRegionListener dirtyRegionListener) throws BadLocationException {
+        _content = new DocumentSnapshot.Content(doc, container.getDocumentLock());
+        _snapshot = null;
+        _container = container;
+        _docLock = container.getDocumentLock();
+        _dirtyRegionListener = dirtyRegionListener;
+        _changes = new ArrayList<>();
+        _operations = new ArrayList<>();
+        _applied = false;
+    }
+
+    public synchronized DocumentSnapshot getSnapshot() {
+        if (_snapshot == null) {
+            _snapshot = new DocumentSnapshot(_content);
+        }
+        return _snapshot;
+    }
+
+    /**
+     * Called (holding the document's lock) before every change made to the document while the pass is
+     * running
+     *
+     * @return false if the pass should be canceled, since the partitions it needs weren't copied
+     */
+    public boolean documentAboutToBeChanged() {
+        return _content.documentAboutToBeChanged();
+    }
+
+    /**
+     * @return false if the pass got partitions which don't match its snapshot (it asked for them after
+     *         the document was changed), so its results shouldn't be applied
+     */
+    public boolean isSnapshotComplete() {
+        return _content.isComplete();
+    }
+
+    /**
+     * Called for every change made to the document while the pass is running
+     */
+    public void documentChanged(final int offset, final int removedLength, final int insertedLength) {
+        synchronized (_docLock) {
+            final int end = offset + removedLength;
+
+            // the changes the new one touches are merged with it
+            int first = 0;
+            while (first < _changes.size() && _changes.get(first)._documentEnd < offset) {
+                first++;
+            }
+            int last = first;
+            while (last < _changes.size() && _changes.get(last)._documentStart <= end) {
+                last++;
+            }
+
+            final int shiftBefore = first == 0 ? 0 : _changes.get(first - 1).getShift();
+            int snapshotStart = offset - shiftBefore;
+            int snapshotEnd = end - shiftBefore;
+            int documentStart = offset;
+            int documentEnd = end;
+            if (first < last) {
+                final Change firstChange = _changes.get(first);
+                final Change lastChange = _changes.get(last - 1);
+                if (firstChange._documentStart <= offset) {
+                    snapshotStart = firstChange._snapshotStart;
+                    documentStart = firstChange._documentStart;
+                }
+                if (lastChange._documentEnd >= end) {
+                    snapshotEnd = lastChange._snapshotEnd;
+                    documentEnd = lastChange._documentEnd;
+                } else {
+                    snapshotEnd = end - lastChange.getShift();
+                }
+            }
+
+            final int delta = insertedLength - removedLength;
+            final List<Change> merged = _changes.subList(first, last);
+            merged.clear();
+            merged.add(new Change(snapshotStart, snapshotEnd, documentStart, documentEnd + delta));
+            for (int i = first + 1; i < _changes.size(); i++) {
+                _changes.get(i)._documentStart += delta;
+                _changes.get(i)._documentEnd += delta;
+            }
+        }
+    }
+
+    /**
+     * Applies the results which weren't applied yet to the document's container
+     *
+     * @throws BadLocationException if any of the results of the pass couldn't be applied
+     */
+    public void apply() throws BadLocationException {
+        synchronized (_docLock) {
+            final List<IOperation> operations;
+            synchronized (_operations) {
+                operations = new ArrayList<>(_operations);
+                _operations.clear();
+            }
+
+            _applied |= !operations.isEmpty();
+            try {
+                for (final IOperation operation : operations) {
+                    operation.apply(_container);
+                }
+            } catch (final BadLocationException e) {
+                _applyError = e;
+            }
+        }
+
+        if (_applyError != null) {
+            throw _applyError;
+        }
+    }
+
+    /**
+     * @return true if any of the results were already applied to the document's container
+     */
+    public boolean hasApplied() {
+        return _applied;
+    }
+
+    /**
+     * @return the region in the document which holds the given region of the snapshot (including the
+     *         text which replaced any part of it)
+     */
+    public IRegion toDocumentRegion(final IRegion region) {
+        synchronized (_docLock) {
+            final int start = toDocumentStart(region.getOffset());
+            return new Region(start, toDocumentEnd(region.getOffset() + region.getLength()) - start);
+        }
+    }
+
+    public void markAllToBeDeleted() {
+        addOperation(BracketeerProcessingContainer::markAllToBeDeleted);
+    }
+
+    private void addOperation(final IOperation operation) {
+        synchronized (_operations) {
+            _operations.add(operation);
+        }
+    }
+
+    @Override
+    public void add(final BracketsPair pair) throws BadLocationException {
+        add(pair, null, false);
+    }
+
+    @Override
+    public void add(final BracketsPair pair, final BracketsPair parent, final boolean crossing) throws BadLocationException {
+        final int open = pair.getOpeningBracket().getPositionRaw().getOffset();
+        final int close = pair.getClosingBracket().getPositionRaw().getOffset();
+        addOperation(container -> {
+            final int newOpen = toDocumentOffset(open);
+            final int newClose = toDocumentOffset(close);
+            if (newOpen == -1 && newClose == -1) {
+                return;
+            }
+            if (newOpen == -1 || newClose == -1) {
+                // the pair was broken, the other bracket isn't in the changed text, but it still needs a
+                // new match (or to be found as a single bracket)
+                final int other = newOpen == -1 ? newClose : newOpen;
+                _dirtyRegionListener.regionDirty(other, other + 1);
+                return;
+            }
+            // a broken parent wasn't added, so the pair is placed by the container
+            container.add(toDocument(pair, newOpen, newClose), parent == null ? null : toDocument(parent), crossing);
+        });
+    }
+
+    /**
+     * @return the pair at the document's offsets, or null if one of its brackets was changed
+     */
+    private BracketsPair toDocument(final BracketsPair pair) {
+        final int newOpen = toDocumentOffset(pair.getOpeningBracket().getPositionRaw().getOffset());
+        final int newClose = toDocumentOffset(pair.getClosingBracket().getPositionRaw().getOffset());
+        if (newOpen == -1 || newClose == -1) {
+            return null;
+        }
+        return toDocument(pair, newOpen, newClose);
+    }
+
+    private static BracketsPair toDocument(final BracketsPair pair, final int newOpen, final int newClose) {
+        final SingleBracket open = pair.getOpeningBracket();
+        final SingleBracket close = pair.getClosingBracket();
+        if (newOpen == open.getPositionRaw().getOffset() && newClose == close.getPositionRaw().getOffset()) {
+            return pair;
+        }
+        return new BracketsPair(newOpen, open.getChar(), newClose, close.getChar());
+    }
+
+    @Override
+    public void add(final SingleBracket bracket) throws BadLocationException {
+        final int offset = bracket.getPositionRaw().getOffset();
+        addOperation(container -> {
+            final int newOffset = toDocumentOffset(offset);
+            if (newOffset == -1) {
+                return;
+            }
+            container.add(newOffset == offset ? bracket : new SingleBracket(newOffset, bracket.isOpening(), bracket.getChar()));
+        });
+    }
+
+    @Override
+    public void add(final Hint hint) throws BadLocationException {
+        final int origin = hint.getOriginPositionRaw().getOffset();
+        final int hintOffset = hint.getHintPositionRaw().getOffset();
+        addOperation(container -> {
+            final int newOrigin = toDocumentOffset(origin);
+            final int newHint = toDocumentOffset(hintOffset);
+            if (newOrigin == -1 || newHint == -1) {
+                return;
+            }
+            container.add(newOrigin == origin && newHint == hintOffset ? hint : new Hint(hint.getType(), newOrigin, newHint, hint.getTxt()));
+        });
+    }
+
+    @Override
+    public void markToBeDeleted(final int startOffset, final int length) {
+        addOperation(container -> {
+            final int start = toDocumentStart(startOffset);
+            container.markToBeDeleted(start, toDocumentEnd(startOffset + length) - start);
+        });
+    }
+
+    @Override
+    public void markHintsToBeDeleted(final int startOffset, final int length) {
+        addOperation(container -> {
+            final int start = toDocumentStart(startOffset);
+            container.markHintsToBeDeleted(start, toDocumentEnd(startOffset + length) - start);
+        });
+    }
+
+    @Override
+    public void publish(final int startOffset, final int length) {
+        addOperation(container -> {
+            final int start = toDocumentStart(startOffset);
+            container.deleteMarked(start, toDocumentEnd(startOffset + length) - start);
+        });
+
+        try {
+            apply();
+        } catch (final BadLocationException e) {
+            // thrown again when the pass ends
+            return;
+        }
+        // the listeners are notified without holding the document's lock
+        _container.updateComplete();
+    }
+
+    /*
+     * The queries are answered by the document's container, with the offsets translated to the
+     * snapshot (the pairs returned are copies, which are not updated when the document changes)
+     */
+
+    @Override
+    public BracketsPair getMatchingPair(final int openOffset, final int closeOffset) {
+        synchronized (_docLock) {
+            final int open = toDocumentOffset(openOffset);
+            final int close = toDocumentOffset(closeOffset);
+            if (open == -1 || close == -1) {
+                return null;
+            }
+            final BracketsPair pair = _container.getMatchingPair(open, close);
+            return pair == null ? null : toSnapshot(pair);
+        }
+    }
+
+    @Override
+    public List<Hint> getHints() {
+        // the hints are not used by the processing, and would have to be copied
+        return new LinkedList<>();
+    }
+
+    @Override
+    public List<BracketsPair> getPairsSurrounding(final int offset) {
+        final List<BracketsPair> ret = new LinkedList<>();
+        synchronized (_docLock) {
+            for (final BracketsPair pair : _container.getPairsSurrounding(toDocumentStart(offset))) {
+                final BracketsPair copy = toSnapshot(pair);
+                final Position open = copy.getOpeningBracket().getPosition();
+                final Position close = copy.getClosingBracket().getPosition();
+                if (open != null && close != null && open.getOffset() <= offset && close.getOffset() > offset) {
+                    ret.add(copy);
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public List<BracketsPair> getMatchingPairs(final int startOffset, final int length) {
+        final List<BracketsPair> ret = new LinkedList<>();
+        synchronized (_docLock) {
+            final int start = toDocumentStart(startOffset);
+            for (final BracketsPair pair : _container.getMatchingPairs(start, toDocumentEnd(startOffset + length) - start)) {
+                final BracketsPair copy = toSnapshot(pair);
+                for (final SingleBracket br : copy.getBrackets()) {
+                    final Position pos = br.getPosition();
+                    if (pos != null && pos.overlapsWith(startOffset, length)) {
+                        ret.add(copy);
+                        break;
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public List<BracketsPair> getBrokenPairs() {
+        final List<BracketsPair> ret = new LinkedList<>();
+        synchronized (_docLock) {
+            for (final BracketsPair pair : _container.getBrokenPairs()) {
+                ret.add(toSnapshot(pair));
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return a copy of the pair (of the document's container) in the snapshot's offsets
+     */
+    private BracketsPair toSnapshot(final BracketsPair pair) {
+        final SingleBracket open = pair.getOpeningBracket();
+        final SingleBracket close = pair.getClosingBracket();
+        final int openOffset = open.getPosition() == null ? -1 : toSnapshotOffset(open.getPosition().getOffset());
+        final int closeOffset = close.getPosition() == null ? -1 : toSnapshotOffset(close.getPosition().getOffset());
+
+        final BracketsPair ret = new BracketsPair(Math.max(openOffset, 0), open.getChar(), Math.max(closeOffset, 0), close.getChar());
+        if (openOffset == -1) {
+            ret.getOpeningBracket().getPositionRaw().delete();
+        }
+        if (closeOffset == -1) {
+            ret.getClosingBracket().getPositionRaw().delete();
+        }
+        return ret;
+    }
+
+    /**
+     * @return the offset in the document of a character of the snapshot, or -1 if it was changed
+     */
+    private int toDocumentOffset(final int offset) {
+        // the first change which ends after the character
+        final int idx = findChange(offset, false);
+        if (idx < _changes.size() && _changes.get(idx)._snapshotStart <= offset) {
+            return -1;
+        }
+        return offset + (idx == 0 ? 0 : _changes.get(idx - 1).getShift());
+    }
+
+    /**
+     * @return the offset in the snapshot of a character of the document, or -1 if it was inserted
+     */
+    private int toSnapshotOffset(final int offset) {
+        // the first change which ends after the character
+        final int idx = findChange(offset, true);
+        if (idx < _changes.size() && _changes.get(idx)._documentStart <= offset) {
+            return -1;
+        }
+        return offset - (idx == 0 ? 0 : _changes.get(idx - 1).getShift());
+    }
+
+    /**
+     * The start of a region (a changed region includes the text which replaced it)
+     */
+    private int toDocumentStart(final int offset) {
+        // the first change which ends at the offset or after it (a region which starts right after a
+        // change includes the text which replaced it, which may have been inserted at the offset)
+        final int idx = findChange(offset - 1, false);
+        if (idx < _changes.size() && _changes.get(idx)._snapshotStart < offset) {
+            return _changes.get(idx)._documentStart;
+        }
+        return offset + (idx == 0 ? 0 : _changes.get(idx - 1).getShift());
+    }
+
+    /**
+     * The end (exclusive) of a region (a changed region includes the text which replaced it)
+     */
+    private int toDocumentEnd(final int offset) {
+        // the first change the offset isn't after (an offset at the start of a change isn't after it,
+        // an offset at its end is)
+        final int idx = findEndChange(offset);
+        if (idx < _changes.size() && _changes.get(idx)._snapshotStart < offset) {
+            return _changes.get(idx)._documentEnd;
+        }
+        return offset + (idx == 0 ? 0 : _changes.get(idx - 1).getShift());
+    }
+
+    /**
+     * @return the index of the first change which ends after the offset (of the document or of the
+     *         snapshot), or the number of changes if there is none
+     */
+    private int findChange(final int offset, final boolean inDocument) {
+        int low = 0;
+        int high = _changes.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final Change change = _changes.get(mid);
+            if ((inDocument ? change._documentEnd : change._snapshotEnd) <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return the index of the first change which the end of a region at the offset (of the snapshot)
+     *         isn't after, or the number of changes if there is none
+     */
+    private int findEndChange(final int offset) {
+        int low = 0;
+        int high = _changes.size();
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final Change change = _changes.get(mid);
+            if (change._snapshotStart < offset && change._snapshotEnd <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -11,20 +11,60 @@
  *******************************************************************************/
 package me.glindholm.plugin.bracketeer2.extensionpoint;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.DocumentEvent;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IDocumentListener;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.Region;
 
 import me.glindholm.plugin.bracketeer2.Activator;
+import me.glindholm.plugin.bracketeer2.common.BracketScanner;
+import me.glindholm.plugin.bracketeer2.common.BracketsPair;
+import me.glindholm.plugin.bracketeer2.common.DocumentSnapshot;
 import me.glindholm.plugin.bracketeer2.common.IBracketeerProcessingContainer;
 import me.glindholm.plugin.bracketeer2.common.IHintConfiguration;
 import me.glindholm.plugin.bracketeer2.common.MutableBool;
+import me.glindholm.plugin.bracketeer2.common.ProcessingExecutor;
+import me.glindholm.plugin.bracketeer2.common.SingleBracket;
 
 public abstract class BracketeerProcessor implements IDocumentListener {
 
+    /**
+     * Scans a region of the document (see {@link BracketeerProcessor#scanVisibleFirst})
+     */
+    protected interface IRegionScanner {
+        /**
+         * @return true if all the brackets in the region are matched
+         */
+        boolean scan(int offset, int length) throws BadLocationException;
+    }
+
+    /**
+     * A phase of a processing pass, which may run in parallel with the rest of the pass (see
+     * {@link BracketeerProcessor#fork})
+     */
+    protected interface IPhase {
+        void run() throws BadLocationException;
+    }
+
+    // the amount of characters scanVisibleFirst scans around each side of the visible region
+    private static final int VISIBLE_MARGIN = 4096;
+
     protected MutableBool _cancelProcessing;
     protected IDocument _doc;
     protected IHintConfiguration _hintConf;
+    private volatile IRegion _visibleRegion;
+    private volatile boolean _degraded;
 
     protected BracketeerProcessor(final IDocument doc) {
         _doc = doc;
@@ -35,22 +75,95 @@ public abstract class BracketeerProcessor implements IDocumentListener {
         _hintConf = conf;
     }
 
-    public boolean process(final IBracketeerProcessingContainer container) {
-        _cancelProcessing.set(false);
+    /**
+     * @param region The region of the document which is visible in the editor, or null if the document
+     *               should be processed in order
+     */
+    public void setVisibleRegion(final IRegion region) {
+        _visibleRegion = region;
+    }
 
-        _doc.addDocumentListener(this);
+    /**
+     * @param degraded true if the document is too large (or takes too long to process) for the
+     *                 expensive parts of the processing, such as the hints and the heuristic matching
+     *                 of angular brackets. Set only between passes.
+     */
+    public void setDegraded(final boolean degraded) {
+        _degraded = degraded;
+    }
 
-        processDocument(_doc, container);
-        postProcess(_doc, container);
+    /**
+     * @return true if only the brackets which are matched by counting should be found
+     */
+    protected boolean isDegraded() {
+        return _degraded;
+    }
 
-        _doc.removeDocumentListener(this);
+    /**
+     * Stops the processing (the current pass, if there is one, returns false)
+     */
+    public void cancel() {
+        _cancelProcessing.set(true);
+    }
+
+    /**
+     * @param snapshot    A copy of the document, taken when the pass started. The document itself may
+     *                    be changed while the pass runs, the results are shifted accordingly by the
+     *                    container.
+     * @param container   The container to add the brackets to
+     * @param dirtyRegion The region which was changed since the last successful pass, or null if the
+     *                    whole document should be processed
+     * @return false if the processing was canceled
+     */
+    public boolean process(final DocumentSnapshot snapshot, final IBracketeerProcessingContainer container, final IRegion dirtyRegion) {
+        _cancelProcessing.set(false);
+
+        if (dirtyRegion == null) {
+            processDocument(snapshot, container);
+        } else {
+            if (!isHintsIncremental()) {
+                container.markHintsToBeDeleted(0, snapshot.getLength());
+            }
+            processDocument(snapshot, container, dirtyRegion);
+        }
+        postProcess(snapshot, container);
 
         return !_cancelProcessing.get();
     }
 
+    /**
+     * Processes the whole document (not a snapshot of it). The processing is canceled if the document
+     * is changed meanwhile.
+     *
+     * @param container The container to add the brackets to
+     * @return false if the processing was canceled
+     * @deprecated the processing runs on a snapshot of the document, see
+     *             {@link #process(DocumentSnapshot, IBracketeerProcessingContainer, IRegion)}
+     */
+    @Deprecated
+    public boolean process(final IBracketeerProcessingContainer container) {
+        final DocumentSnapshot snapshot;
+        try {
+            snapshot = new DocumentSnapshot(_doc);
+        } catch (final BadLocationException e) {
+            Activator.log(e);
+            return false;
+        }
+
+        _doc.addDocumentListener(this);
+        try {
+            return process(snapshot, container, null) && snapshot.isCurrent(_doc);
+        } finally {
+            _doc.removeDocumentListener(this);
+        }
+    }
+
     private void postProcess(final IDocument doc, final IBracketeerProcessingContainer container) {
     }
 
+    /**
+     * Cancels the processing started by {@link #process(IBracketeerProcessingContainer)}
+     */
     @Override
     public void documentAboutToBeChanged(final DocumentEvent event) {
         if (Activator.DEBUG) {
@@ -64,10 +177,224 @@ public abstract class BracketeerProcessor implements IDocumentListener {
         // nothing...
     }
 
+    /**
+     * @param doc The document being processed
+     * @return false if the editor's document was changed since the snapshot being processed was taken
+     *         (information taken from the editor, such as an AST, may not match the snapshot)
+     */
+    protected boolean isSnapshotCurrent(final IDocument doc) {
+        return !(doc instanceof DocumentSnapshot) || ((DocumentSnapshot) doc).isCurrent(_doc);
+    }
+
+    /**
+     * @return true if the processor marks the obsolete hints itself when only part of the document is
+     *         processed (see {@link IBracketeerProcessingContainer#markHintsToBeDeleted(int, int)}).
+     *         Otherwise all the hints are marked before such a pass, and are expected to be added
+     *         again.
+     */
+    protected boolean isHintsIncremental() {
+        return false;
+    }
+
     /**
      * 
      * @param doc       The document to be processed
      * @param container The contains to add the brackets to
      */
     protected abstract void processDocument(IDocument doc, IBracketeerProcessingContainer container);
+
+    /**
+     * Processes the document after only part of it was changed. The hints are expected to be added
+     * again (unless the processor marks them itself, see {@link #isHintsIncremental()}), the brackets
+     * only in the regions the processor marks as obsolete (see
+     * {@link IBracketeerProcessingContainer#markToBeDeleted(int, int)}).
+     *
+     * The default implementation processes the whole document.
+     *
+     * @param doc         The document to be processed
+     * @param container   The contains to add the brackets to
+     * @param dirtyRegion The region which was changed since the last successful pass
+     */
+    protected void processDocument(final IDocument doc, final IBracketeerProcessingContainer container, final IRegion dirtyRegion) {
+        container.markToBeDeleted(0, doc.getLength());
+        processDocument(doc, container);
+    }
+
+    /**
+     * Gets the regions which may be re-scanned instead of the whole document after the dirty region was
+     * changed. Each region spans a pair (whose brackets were left intact) surrounding the dirty region,
+     * and no other pair crosses its borders. The regions are ordered from the innermost to the
+     * outermost, and each one is looked for only when the previous one was rejected.
+     *
+     * A region may be used only if, after re-scanning it, all the brackets in it are matched.
+     * Otherwise the bracket structure didn't re-synchronize and the next region should be tried.
+     *
+     * A pair which lost one of its brackets (it was in the dirty region) must not cross the borders
+     * either, its other bracket would otherwise be left with a wrong match.
+     *
+     * @param doc             The document being processed
+     * @param container       The container holding the results of the previous pass
+     * @param dirtyRegion     The region which was changed since the last successful pass
+     * @param countedBrackets The brackets matched by counting (only pairs of these are used)
+     */
+    protected static Iterable<IRegion> getRescanRegions(final IDocument doc, final IBracketeerProcessingContainer container, final IRegion dirtyRegion,
+            final String countedBrackets) {
+        final int dirtyStart = dirtyRegion.getOffset();
+        final int dirtyEnd = dirtyStart + dirtyRegion.getLength();
+
+        // the brackets left from pairs which lost their other bracket, a region has to hold all of them
+        int orphansStart = dirtyStart;
+        int orphansEnd = dirtyEnd;
+        for (final BracketsPair pair : container.getBrokenPairs()) {
+            for (final SingleBracket br : pair.getBrackets()) {
+                final Position pos = br.getPosition();
+                if (pos != null) {
+                    orphansStart = Math.min(orphansStart, pos.getOffset());
+                    orphansEnd = Math.max(orphansEnd, pos.getOffset() + 1);
+                }
+            }
+        }
+
+        final List<BracketsPair> surrounding = new ArrayList<>();
+        for (final BracketsPair pair : container.getPairsSurrounding(dirtyStart)) {
+            if (pair.hasDeletedPosition() || countedBrackets.indexOf(pair.getOpeningBracket().getChar()) == -1) {
+                continue;
+            }
+            final int open = pair.getOpeningBracket().getPosition().getOffset();
+            final int close = pair.getClosingBracket().getPosition().getOffset();
+            if (open <= orphansStart && close >= orphansEnd - 1 && open < dirtyStart && close >= dirtyEnd) {
+                surrounding.add(pair);
+            }
+        }
+        surrounding.sort((a, b) -> b.getOpeningBracket().getPosition().getOffset() - a.getOpeningBracket().getPosition().getOffset());
+
+        return () -> new Iterator<>() {
+            private final Iterator<BracketsPair> _pairs = surrounding.iterator();
+            // looked for only when asked for, the caller stops at the first region which fits
+            private IRegion _next;
+
+            private IRegion findNext() {
+                while (_pairs.hasNext()) {
+                    final BracketsPair pair = _pairs.next();
+                    final int open = pair.getOpeningBracket().getPosition().getOffset();
+                    final int close = pair.getClosingBracket().getPosition().getOffset();
+                    if (!hasPairsCrossing(container, open, close + 1)) {
+                        return new Region(open, close + 1 - open);
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (_next == null) {
+                    _next = findNext();
+                }
+                return _next != null;
+            }
+
+            @Override
+            public IRegion next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final IRegion ret = _next;
+                _next = null;
+                return ret;
+            }
+        };
+    }
+
+    /**
+     * Scans the visible region (with a margin around it), and publishes the pairs found in it before
+     * the caller scans the whole document. A pair whose brackets are both inside the region is always
+     * found by scanning just that region, so the published pairs are final.
+     *
+     * Nothing is done if there is no visible region, or if the region would hold the whole document.
+     * The whole document is not scanned here, as the single brackets are known only when the whole
+     * document is scanned, this is left to the caller (so the document is scanned about once, the
+     * visible region being small).
+     *
+     * @param docLength     The length of the document
+     * @param container     The container to add the pairs to
+     * @param scanner       The scanner which keeps the results of regionScanner
+     * @param regionScanner Scans a region using the scanner
+     */
+    protected void scanVisibleFirst(final int docLength, final IBracketeerProcessingContainer container, final BracketScanner scanner,
+            final IRegionScanner regionScanner) throws BadLocationException {
+        final IRegion visible = _visibleRegion;
+        if (visible == null) {
+            return;
+        }
+
+        final int visibleStart = Math.min(Math.max(visible.getOffset(), 0), docLength);
+        final int start = Math.max(0, visibleStart - VISIBLE_MARGIN);
+        final int end = Math.min(docLength, visibleStart + visible.getLength() + VISIBLE_MARGIN);
+        if (start == 0 && end == docLength) {
+            return;
+        }
+
+        regionScanner.scan(start, end - start);
+        if (_cancelProcessing.get()) {
+            return;
+        }
+        scanner.flushPairs(container);
+        container.publish(start, end - start);
+    }
+
+    /**
+     * Starts running the phase on another thread, so it runs in parallel with the rest of the pass
+     * (unless there is just one processor, or all the phase threads are busy). Both may add to the
+     * container, but the phase must not depend on the brackets the rest of the pass adds (or marks as
+     * obsolete) and vice versa.
+     *
+     * The pass must {@link #join} the phase before it ends, even if it is canceled.
+     */
+    protected Future<?> fork(final IPhase phase) {
+        final FutureTask<Void> task = new FutureTask<>(() -> {
+            phase.run();
+            return null;
+        });
+        if (ProcessingExecutor.isParallel()) {
+            ProcessingExecutor.execute(task);
+        } else {
+            task.run();
+        }
+        return task;
+    }
+
+    /**
+     * Waits for a phase started by {@link #fork} to end
+     *
+     * @throws BadLocationException if the phase threw it
+     */
+    protected void join(final Future<?> phase) throws BadLocationException {
+        try {
+            phase.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            _cancelProcessing.set(true);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof BadLocationException) {
+                throw (BadLocationException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static boolean hasPairsCrossing(final IBracketeerProcessingContainer container, final int start, final int end) {
+        for (final BracketsPair pair : container.getMatchingPairs(start, end - start)) {
+            for (final SingleBracket br : pair.getBrackets()) {
+                final Position pos = br.getPosition();
+                if (pos != null && (pos.getOffset() < start || pos.getOffset() >= end)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 }
@@ -12,6 +12,7 @@ package me.glindholm.plugin.bracketeer2.preferences;
 
 import org.eclipse.core.runtime.IConfigurationElement;
 import org.eclipse.core.runtime.Platform;
+import org.eclipse.jface.preference.BooleanFieldEditor;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.layout.GridLayout;
 import org.eclipse.swt.widgets.Composite;
@@ -53,6 +54,27 @@ public class MainPrefPage extends FieldLayoutPreferencePage implements IWorkbenc
                 Messages.MainPrefPage_HyperlinkModifier, composite);
         addField(mks);
 
+        final Composite composite_1 = new Composite(container, SWT.NONE);
+        addField(new BooleanFieldEditor(PreferencesConstants.General.PROCESS_VISIBLE_FIRST, Messages.MainPrefPage_ProcessVisibleFirst,
+                BooleanFieldEditor.DEFAULT, composite_1));
+
+        final Composite composite_2 = new Composite(container, SWT.NONE);
+        addField(new BooleanFieldEditor(PreferencesConstants.General.DEGRADE_LARGE_FILES, Messages.MainPrefPage_DegradeLargeFiles, BooleanFieldEditor.DEFAULT,
+                composite_2));
+
+        final Composite composite_3 = new Composite(container, SWT.NONE);
+        SpinnerFieldEditor spinner = new SpinnerFieldEditor(PreferencesConstants.General.LARGE_FILE_SIZE, Messages.MainPrefPage_LargeFileSize, composite_3);
+        addField(spinner);
+        spinner.getSpinner().setMinimum(1);
+        spinner.getSpinner().setMaximum(100000);
+
+        final Composite composite_4 = new Composite(container, SWT.NONE);
+        spinner = new SpinnerFieldEditor(PreferencesConstants.General.SLOW_PASS_TIME, Messages.MainPrefPage_SlowPassTime, composite_4);
+        addField(spinner);
+        spinner.getSpinner().setMinimum(100);
+        spinner.getSpinner().setMaximum(60000);
+        spinner.getSpinner().setIncrement(100);
+
         PlatformUI.getWorkbench().getHelpSystem().setHelp(getControl(), "com.choockapp.org.bracketeer.main_pref"); //$NON-NLS-1$
         return container;
     }
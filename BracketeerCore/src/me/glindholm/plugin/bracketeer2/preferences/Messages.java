@@ -45,6 +45,10 @@ public class Messages extends NLS {
     public static String HintsPrefPage_WhenToShow;
     public static String MainPrefPage_Description;
     public static String MainPrefPage_HyperlinkModifier;
+    public static String MainPrefPage_ProcessVisibleFirst;
+    public static String MainPrefPage_DegradeLargeFiles;
+    public static String MainPrefPage_LargeFileSize;
+    public static String MainPrefPage_SlowPassTime;
     public static String StringPartCheckBoxes_ErrSupportedBrackets;
     public static String MainPrefPage_lblNoBracketeerEditor_text;
     public static String MainPrefPage_txtNoBracketeerEditor_text;
@@ -143,6 +143,10 @@ public final class PreferencesConstants {
     public final static class General {
         private static final String PATH = "General."; //$NON-NLS-1$
         public static final String HYPERLINK_MODIFIERS = PATH + "HyperlinkModifiers"; //$NON-NLS-1$
+        public static final String PROCESS_VISIBLE_FIRST = PATH + "ProcessVisibleFirst"; //$NON-NLS-1$
+        public static final String DEGRADE_LARGE_FILES = PATH + "DegradeLargeFiles"; //$NON-NLS-1$
+        public static final String LARGE_FILE_SIZE = PATH + "LargeFileSize"; //$NON-NLS-1$
+        public static final String SLOW_PASS_TIME = PATH + "SlowPassTime"; //$NON-NLS-1$
     }
 
     public static String preferencePath(final String pluginName) {
@@ -39,6 +39,10 @@ public class PreferencesInitializer extends AbstractPreferenceInitializer {
         final IPreferenceStore editorsStore = EditorsUI.getPreferenceStore();
         store.setDefault(PreferencesConstants.General.HYPERLINK_MODIFIERS,
                 editorsStore.getInt(AbstractDecoratedTextEditorPreferenceConstants.EDITOR_HYPERLINK_KEY_MODIFIER_MASK));
+        store.setDefault(PreferencesConstants.General.PROCESS_VISIBLE_FIRST, true);
+        store.setDefault(PreferencesConstants.General.DEGRADE_LARGE_FILES, true);
+        store.setDefault(PreferencesConstants.General.LARGE_FILE_SIZE, 1024);
+        store.setDefault(PreferencesConstants.General.SLOW_PASS_TIME, 1000);
     }
 
     private void defualtHints(final IPreferenceStore store, final IConfigurationElement element, final String pluginName) {
@@ -10,24 +10,33 @@
  *******************************************************************************/
 package me.glindholm.plugin.bracketeer2.jdt;
 
+import java.util.concurrent.Future;
+
 import org.eclipse.jdt.core.ITypeRoot;
 import org.eclipse.jdt.core.JavaModelException;
 import org.eclipse.jdt.core.dom.AST;
+import org.eclipse.jdt.core.dom.ASTNode;
 import org.eclipse.jdt.core.dom.ASTParser;
 import org.eclipse.jdt.core.dom.CompilationUnit;
+import org.eclipse.jdt.core.dom.MethodDeclaration;
+import org.eclipse.jdt.core.dom.NodeFinder;
+import org.eclipse.jdt.core.dom.TypeDeclaration;
+import org.eclipse.jdt.core.manipulation.SharedASTProviderCore;
 import org.eclipse.jdt.ui.JavaUI;
 import org.eclipse.jdt.ui.text.IJavaPartitions;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
-import org.eclipse.jface.text.TextUtilities;
+import org.eclipse.jface.text.ITypedRegion;
+import org.eclipse.jface.text.Region;
 import org.eclipse.jface.text.source.ICharacterPairMatcher;
 import org.eclipse.ui.IEditorPart;
 
+import me.glindholm.plugin.bracketeer2.common.BracketScanner;
 import me.glindholm.plugin.bracketeer2.common.BracketsPair;
+import me.glindholm.plugin.bracketeer2.common.DeferredBracketsContainer;
 import me.glindholm.plugin.bracketeer2.common.IBracketeerProcessingContainer;
-import me.glindholm.plugin.bracketeer2.common.SingleBracket;
-import me.glindholm.plugin.bracketeer2.common.Utils;
+import me.glindholm.plugin.bracketeer2.common.PartitionIndex;
 import me.glindholm.plugin.bracketeer2.extensionpoint.BracketeerProcessor;
 import me.glindholm.plugin.bracketeer2.jdt.core.internal.JavaPairMatcher;
 
@@ -40,27 +49,126 @@ public class BracketeerJdtProcessor extends BracketeerProcessor {
      */
     protected final static String LONELY_BRACKETS = "()[]{}"; //$NON-NLS-1$
 
-    String[] ALL_JPARTITIONS = { IJavaPartitions.JAVA_CHARACTER, IJavaPartitions.JAVA_DOC, IJavaPartitions.JAVA_MULTI_LINE_COMMENT,
-            IJavaPartitions.JAVA_SINGLE_LINE_COMMENT, IJavaPartitions.JAVA_STRING };
+    /*
+     * The brackets which are matched by counting. Angular brackets are heuristic, so they are left to
+     * the JavaPairMatcher
+     */
+    protected final static String COUNTED_BRACKETS = "(){}[]"; //$NON-NLS-1$
+    protected final static String HEURISTIC_BRACKETS = "<>"; //$NON-NLS-1$
 
     private final JavaPairMatcher _matcher;
     private final ITypeRoot _typeRoot;
+    private final BracketScanner _scanner;
+
+    /**
+     * Adds the hints (and the angular brackets) found by the AST, in parallel with the bracket scan.
+     * Only the member (method or type) which holds the dirty region is visited. The hints of the other
+     * members are kept, their positions were updated along with the document.
+     */
+    private class AstPhase implements IPhase {
+        private final IDocument _processedDoc;
+        private final DeferredBracketsContainer _container;
+        private final IRegion _dirtyRegion;
+        private CompilationUnit _cu;
+        private ASTNode _visited;
+
+        /**
+         * @param dirtyRegion the region changed since the last pass, or null if all the hints should be
+         *                    found again
+         */
+        public AstPhase(final IDocument doc, final IBracketeerProcessingContainer container, final IRegion dirtyRegion) {
+            _processedDoc = doc;
+            _container = new DeferredBracketsContainer(container);
+            _dirtyRegion = dirtyRegion;
+        }
+
+        @Override
+        public void run() {
+            _cu = getAst(_processedDoc);
+            if (_cu != null && !_cancelProcessing.get()) {
+                visit(_dirtyRegion);
+            }
+        }
+
+        /**
+         * Called after the phase and the bracket scan are done. The angular brackets are added only now,
+         * as the scan marked the brackets of the region it scanned as obsolete. If that region isn't
+         * inside the member which was visited, the member which holds it is visited as well.
+         *
+         * @param scannedRegion the region whose brackets were found again
+         */
+        public void complete(final IRegion scannedRegion) throws BadLocationException {
+            if (_cu == null) {
+                return;
+            }
+            if (!isVisited(scannedRegion)) {
+                visit(scannedRegion);
+            }
+            _container.flush();
+        }
+
+        private void visit(final IRegion region) {
+            final ClosingBracketHintVisitor visitor = new ClosingBracketHintVisitor(_container, _processedDoc, _cancelProcessing, _hintConf);
+            final ASTNode member = region == null ? null : getEnclosingMember(_cu, region);
+            if (member == null) {
+                _visited = _cu;
+                _container.markHintsToBeDeleted(0, _processedDoc.getLength());
+            } else {
+                _visited = member;
+                _container.markHintsToBeDeleted(member.getStartPosition(), member.getLength());
+            }
+            _visited.accept(visitor);
+        }
+
+        private boolean isVisited(final IRegion region) {
+            return _visited == _cu || _visited.getStartPosition() <= region.getOffset()
+                    && region.getOffset() + region.getLength() <= _visited.getStartPosition() + _visited.getLength();
+        }
+    }
 
     protected BracketeerJdtProcessor(final IEditorPart part, final IDocument doc) {
         super(doc);
         _matcher = new JavaPairMatcher(BRACKETS);
+        _scanner = new BracketScanner(COUNTED_BRACKETS, LONELY_BRACKETS, HEURISTIC_BRACKETS,
+                (d, offset) -> isDegraded() ? null : getMatchingPair(d, offset + 1));
         _typeRoot = JavaUI.getEditorInputTypeRoot(part.getEditorInput());
     }
 
     @Override
     protected void processDocument(final IDocument doc, final IBracketeerProcessingContainer container) {
+        processDocument(doc, container, (IRegion) null);
+    }
+
+    @Override
+    protected boolean isHintsIncremental() {
+        return true;
+    }
+
+    @Override
+    protected void processDocument(final IDocument doc, final IBracketeerProcessingContainer container, final IRegion dirtyRegion) {
         if (Activator.DEBUG) {
             Activator.trace("starting process..."); //$NON-NLS-1$
         }
 
         try {
-            processBrackets(doc, container);
-            processAst(doc, container);
+            // the hints are left out in large files
+            final AstPhase astPhase = isDegraded() ? null : new AstPhase(doc, container, dirtyRegion);
+            final Future<?> astFuture = astPhase == null ? null : fork(astPhase);
+
+            IRegion scannedRegion = null;
+            try {
+                scannedRegion = processBrackets(doc, container, dirtyRegion);
+            } catch (final BadLocationException e) {
+                _cancelProcessing.set(true);
+            } finally {
+                if (astFuture != null) {
+                    join(astFuture);
+                }
+            }
+
+            if (astPhase != null && !_cancelProcessing.get()) {
+                astPhase.complete(scannedRegion);
+            }
         } catch (final BadLocationException e) {
             _cancelProcessing.set(true);
         }
@@ -70,67 +178,141 @@ public class BracketeerJdtProcessor extends BracketeerProcessor {
         }
     }
 
-    private void processAst(final IDocument doc, final IBracketeerProcessingContainer container) {
+    /**
+     * @return the AST of the processed text, or null if there is none (or if the processing was
+     *         canceled)
+     */
+    private CompilationUnit getAst(final IDocument doc) {
         if (_typeRoot == null) {
-            return;
+            return null;
         }
 
         // can happen if this is a "classFile" without attached source...
         try {
             if (_typeRoot.getSource() == null) {
-                return;
+                return null;
             }
         } catch (final JavaModelException e) {
-            return;
+            return null;
+        }
+
+        final CompilationUnit cu = getSharedAst(doc);
+        if (cu != null || _cancelProcessing.get()) {
+            return cu;
         }
 
         final ASTParser astp = ASTParser.newParser(AST.getJLSLatest());
-        astp.setSource(_typeRoot);
+        // parsed from the processed text (rather than from the type root) so the AST matches it
+        astp.setSource(doc.get().toCharArray());
+        astp.setProject(_typeRoot.getJavaProject());
         astp.setResolveBindings(false);
-        final CompilationUnit cu = (CompilationUnit) astp.createAST(null);
+        return (CompilationUnit) astp.createAST(null);
+    }
 
-        final ClosingBracketHintVisitor visitor = new ClosingBracketHintVisitor(container, doc, _cancelProcessing, _hintConf);
-        cu.accept(visitor);
+    /**
+     * @return the innermost method or type which holds the whole region, or null if there is no such
+     *         member (the whole compilation unit should be visited)
+     */
+    private static ASTNode getEnclosingMember(final CompilationUnit cu, final IRegion region) {
+        ASTNode node = new NodeFinder(cu, region.getOffset(), region.getLength()).getCoveringNode();
+        while (node != null && !(node instanceof MethodDeclaration) && !(node instanceof TypeDeclaration)) {
+            node = node.getParent();
+        }
+        return node;
     }
 
-    private void processBrackets(final IDocument doc, final IBracketeerProcessingContainer container) throws BadLocationException {
-        for (int i = 1; i < doc.getLength(); i++) {
-            if (_cancelProcessing.get()) {
-                break;
+    /**
+     * Gets the AST the Java editor's reconciler built, so the text doesn't have to be parsed again. The
+     * AST is used only if it was built from the processed text: the working copy was reconciled, and the
+     * document wasn't changed since the snapshot was taken. If the editor is reconciling the text, the
+     * provider waits for it to finish.
+     *
+     * @return the editor's AST, or null if there is no such AST which matches the processed text
+     */
+    private CompilationUnit getSharedAst(final IDocument doc) {
+        if (_cancelProcessing.get() || !isSnapshotCurrent(doc)) {
+            return null;
+        }
+        // there is no AST for an editor which isn't the active one
+        final CompilationUnit cu = SharedASTProviderCore.getAST(_typeRoot, SharedASTProviderCore.WAIT_ACTIVE_ONLY, null);
+        if (cu == null) {
+            return null;
+        }
+        // the AST may be the one cached by the last reconcile, which is older than the text unless the
+        // type root is consistent (checked before the snapshot, so an edit made since is caught by it)
+        try {
+            if (!_typeRoot.isConsistent()) {
+                return null;
             }
+        } catch (final JavaModelException e) {
+            return null;
+        }
+        if (isSnapshotCurrent(doc) && cu.getLength() == doc.getLength()) {
+            return cu;
+        }
+        return null;
+    }
 
-            final BracketsPair pair = getMatchingPair(doc, i);
-            if (pair != null) {
-                if (Activator.DEBUG) {
-                    Activator.trace("matching pair added: " + pair.toString()); //$NON-NLS-1$
+    /**
+     * @param dirtyRegion the region changed since the last pass, or null if all the brackets should be
+     *                    found again
+     * @return the region whose brackets were found again
+     */
+    private IRegion processBrackets(final IDocument doc, final IBracketeerProcessingContainer container, final IRegion dirtyRegion)
+            throws BadLocationException {
+        if (dirtyRegion != null) {
+            for (final IRegion region : getRescanRegions(doc, container, dirtyRegion, COUNTED_BRACKETS)) {
+                final boolean balanced = scanBrackets(doc, region.getOffset(), region.getLength());
+                if (_cancelProcessing.get()) {
+                    return region;
+                }
+                if (balanced) {
+                    container.markToBeDeleted(region.getOffset(), region.getLength());
+                    _scanner.flush(container);
+                    return region;
                 }
-                container.add(pair);
-                continue;
             }
+        }
 
-            final SingleBracket single = getLonelyBracket(doc, i);
-            if (single != null) {
-                container.add(single);
-            }
+        final IRegion all = new Region(0, doc.getLength());
+        scanVisibleFirst(doc.getLength(), container, _scanner, (offset, length) -> scanBrackets(doc, offset, length));
+        if (_cancelProcessing.get()) {
+            return all;
         }
+
+        scanBrackets(doc, 0, doc.getLength());
+        if (_cancelProcessing.get()) {
+            return all;
+        }
+        container.markToBeDeleted(0, doc.getLength());
+        _scanner.flush(container);
+        return all;
     }
 
-    private SingleBracket getLonelyBracket(final IDocument doc, final int offset) throws BadLocationException {
-        final int charOffset = offset - 1;
-        char prevChar;
+    /**
+     * @return true if all the brackets in the region are matched
+     */
+    private boolean scanBrackets(final IDocument doc, final int offset, final int length) throws BadLocationException {
+        final int end = offset + length;
+        final ITypedRegion[] partitions = PartitionIndex.computePartitioning(doc, IJavaPartitions.JAVA_PARTITIONING, offset, length);
 
-        prevChar = doc.getChar(Math.max(charOffset, 0));
-        if (LONELY_BRACKETS.indexOf(prevChar) == -1) {
-            return null;
-        }
-        final String partition = TextUtilities.getContentType(doc, IJavaPartitions.JAVA_PARTITIONING, charOffset, false);
-        for (final String partName : ALL_JPARTITIONS) {
-            if (partName.equals(partition)) {
-                return null;
+        _scanner.begin(doc);
+        for (final ITypedRegion partition : partitions) {
+            if (_cancelProcessing.get()) {
+                break;
             }
-        }
 
-        return new SingleBracket(charOffset, Utils.isOpenningBracket(prevChar), prevChar);
+            // comments, strings and characters are skipped
+            if (!IDocument.DEFAULT_CONTENT_TYPE.equals(partition.getType())) {
+                continue;
+            }
+
+            final int start = Math.max(partition.getOffset(), offset);
+            _scanner.scan(start, Math.min(partition.getOffset() + partition.getLength(), end) - start, BracketScanner.DEFAULT_SCOPE,
+                    _cancelProcessing);
+        }
+        _scanner.end(_cancelProcessing);
+        return _scanner.isBalanced();
     }
 
     private BracketsPair getMatchingPair(final IDocument doc, int offset) throws BadLocationException {
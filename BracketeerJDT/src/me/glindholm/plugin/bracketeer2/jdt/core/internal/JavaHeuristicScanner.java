@@ -19,9 +19,10 @@ import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.ITypedRegion;
 import org.eclipse.jface.text.Region;
-import org.eclipse.jface.text.TextUtilities;
 import org.eclipse.jface.text.TypedRegion;
 
+import me.glindholm.plugin.bracketeer2.common.PartitionIndex;
+
 /**
  * Utility methods for heuristic based Java manipulations in an incomplete Java source file.
  *
@@ -946,7 +947,7 @@ public final class JavaHeuristicScanner implements Symbols {
             Assert.isTrue(position <= fDocument.getLength());
 
             try {
-                fCachedPartition = TextUtilities.getPartition(fDocument, fPartitioning, position, false);
+                fCachedPartition = PartitionIndex.getPartition(fDocument, fPartitioning, position);
             } catch (final BadLocationException e) {
                 fCachedPartition = new TypedRegion(position, 0, "__no_partition_at_all"); //$NON-NLS-1$
             }
@@ -16,9 +16,10 @@ import org.eclipse.jdt.ui.text.IJavaPartitions;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
-import org.eclipse.jface.text.TextUtilities;
 import org.eclipse.jface.text.source.DefaultCharacterPairMatcher;
 
+import me.glindholm.plugin.bracketeer2.common.PartitionIndex;
+
 /**
  * Helper class for match pairs of characters.
  */
@@ -86,7 +87,7 @@ public final class JavaPairMatcher extends DefaultCharacterPairMatcher implement
             return false;
         }
         final JavaHeuristicScanner scanner = new JavaHeuristicScanner(document, IJavaPartitions.JAVA_PARTITIONING,
-                TextUtilities.getContentType(document, IJavaPartitions.JAVA_PARTITIONING, offset, false));
+                PartitionIndex.getContentType(document, IJavaPartitions.JAVA_PARTITIONING, offset));
         return !isTypeParameterBracket(offset, document, scanner);
     }
 